@@ -0,0 +1,151 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * BwlArchive
+ *
+ * Writes the downloaded files as entries of ZIP archives instead of single files, to keep
+ * the number of files in the file system low. Every download thread writes its own archive,
+ * name-1.zip, name-2.zip, ..., so the entries are streamed from the connection into the
+ * archive while the other threads write theirs. If a maximum size is given, a thread starts
+ * a new archive when its current one has reached it: name-1-2.zip, name-1-3.zip, ...
+ * Entry names are unique over all archives, a name that was used before gets a number like
+ * with option -r.
+ */
+public class BwlArchive {
+
+    private final File file;
+    private final long maxBytes;
+    private final Set<String> names = new HashSet<String>();
+    private final Map<Thread, Part> parts = new ConcurrentHashMap<Thread, Part>();
+    private final AtomicInteger workers = new AtomicInteger();
+
+    /**
+     * The data of an entry.
+     */
+    public interface Content {
+        /**
+         * Write the data. The stream must not be closed.
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * The archives of one thread.
+     */
+    private class Part {
+        final int worker;
+        int number = 0;
+        File current = null;
+        CountingOutputStream counter = null;
+        ZipOutputStream zip = null;
+
+        Part(int worker) {
+            this.worker = worker;
+        }
+
+        void next() throws IOException {
+            close();
+            number++;
+            String name = FilenameUtils.getBaseName(file.getName()) + "-" + worker + (number > 1 ? "-" + number : "");
+            current = new File(file.getParentFile(), name + "." + FilenameUtils.getExtension(file.getName()));
+            if (current.getParentFile() != null) FileUtils.forceMkdir(current.getParentFile());
+            counter = new CountingOutputStream(new FileOutputStream(current));
+            zip = new ZipOutputStream(counter);
+            // attachments are mostly compressed already, fast compression costs little and saves time
+            zip.setLevel(Deflater.BEST_SPEED);
+        }
+
+        void close() throws IOException {
+            if (zip == null) return;
+            zip.close();
+            zip = null;
+        }
+    }
+
+    /**
+     * @param file the name of the archives, the number of the thread is added to it,
+     *             an archive is created with its first entry
+     * @param maxBytes the size to start a new archive, 0 for no limit
+     */
+    public BwlArchive(File file, long maxBytes) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Add an entry to the archive of the current thread. Other threads are not blocked while
+     * the content is written. If the content fails, the entry stays incomplete in the archive.
+     *
+     * @param name the path of the entry, with "/" as separator
+     * @param content writes the data of the entry
+     * @return the archive file and the entry name, as "archive.zip!/name"
+     */
+    public String add(String name, Content content) throws IOException {
+        Part part = parts.get(Thread.currentThread());
+        if (part == null) {
+            part = new Part(workers.incrementAndGet());
+            parts.put(Thread.currentThread(), part);
+        }
+        if (part.zip == null || (maxBytes > 0 && part.counter.getByteCount() >= maxBytes)) part.next();
+        name = uniqueName(name);
+        part.zip.putNextEntry(new ZipEntry(name));
+        try {
+            content.writeTo(new CloseShieldOutputStream(part.zip));
+        } finally {
+            // an entry with an error is closed as well, so the archive stays readable
+            part.zip.closeEntry();
+        }
+        return part.current.getPath() + "!/" + name;
+    }
+
+    /**
+     * Finish the archives of all threads, after their downloads have ended.
+     */
+    public void close() throws IOException {
+        IOException error = null;
+        for (Part part : parts.values()) {
+            try {
+                part.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        parts.clear();
+        if (error != null) throw error;
+    }
+
+    /**
+     * @param path a path returned by add
+     * @return the archive file of the path, null if it is not a path in an archive
+     */
+    public static File getArchiveFile(String path) {
+        int sep = path.indexOf("!/");
+        return sep > 0 ? new File(path.substring(0, sep)) : null;
+    }
+
+    private synchronized String uniqueName(String name) {
+        if (names.add(name)) return name;
+        String base = FilenameUtils.removeExtension(name);
+        String ext = FilenameUtils.getExtension(name);
+        for (int i = 2; ; i++) {
+            String unique = base + "_" + i + (ext.length() > 0 ? "." + ext : "");
+            if (names.add(unique)) return unique;
+        }
+    }
+}
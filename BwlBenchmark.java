@@ -0,0 +1,166 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.wink.json4j.JSONObject;
+
+/**
+ * BwlBenchmark
+ *
+ * Measures BwlFileDownloader against a local BwlStubServer, so that changes of the
+ * performance can be seen without network access:
+ *  - parsing of the ListFiles result, streaming and as complete JSON tree
+ *  - the copy path writeFileData, from memory to a file
+ *  - a complete run of BwlFileDownloader, in files per second and MB per second
+ * Every benchmark runs a few warm up iterations before the measured ones.
+ * Every run of BwlFileDownloader is started in a new JVM, because the downloader keeps
+ * state in static fields, which must not be carried from one iteration to the next.
+ * The time of a run is the "total" phase of its metrics, without the start of the JVM.
+ * A run that does not download all files is reported as error.
+ *
+ * Run it:
+ *    java -cp .;commons-io-2.4.jar;wink-json4j-1.3.0.jar BwlBenchmark [files] [fileSize] [latencyMillis] [errorRate] [parallel]
+ */
+public class BwlBenchmark {
+
+    private final static int WARMUP = 2;
+    private final static int ITERATIONS = 5;
+
+    /**
+     * A piece of code to measure.
+     */
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 100 * 1024;
+        int latency = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        double errorRate = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+        int parallel = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+
+        final BwlStubServer stub = new BwlStubServer(files, size, latency, errorRate);
+        stub.start(0);
+        final File output = Files.createTempDirectory("bwl-benchmark").toFile();
+        try {
+            System.out.println("Benchmark with "+files+" files of "+size+" bytes, latency "+latency+" ms, error rate "+errorRate);
+            System.out.println("------------------------------------------------------------------------------");
+
+            final byte[] list = stub.getFileList().getBytes("UTF-8");
+            report("ListFiles streaming parser", measure(new Task() {
+                public void run() throws Exception {
+                    BwlFileListParser parser = new BwlFileListParser(new ByteArrayInputStream(list));
+                    while (parser.next() != null);
+                }
+            }), files, list.length);
+            report("ListFiles complete JSON tree", measure(new Task() {
+                public void run() throws Exception {
+                    new JSONObject(new ByteArrayInputStream(list));
+                }
+            }), files, list.length);
+
+            final byte[] data = new byte[64 * 1024 * 1024];
+            final File target = new File(output, "write.bin");
+            report("writeFileData 64 MB", measure(new Task() {
+                public void run() throws Exception {
+                    BwlFileDownloader.writeFileData(new ByteArrayInputStream(data), target, false, null);
+                }
+            }), 1, data.length);
+            FileUtils.forceDelete(target);
+
+            String[] downloaderArgs = { "user", "password", "account", "-u", stub.getUrl(),
+                    "-d", new File(output, "downloads").getPath(), "-t", "", "-s", "-r", "-p", String.valueOf(parallel) };
+            report("Download with -s -r -p "+parallel, measureDownload(downloaderArgs, output, files), files, stub.getTotalBytes());
+        } finally {
+            stub.stop();
+            FileUtils.deleteDirectory(output);
+        }
+    }
+
+    /**
+     * Run a task WARMUP times, then ITERATIONS times with time measurement.
+     *
+     * @return the duration of the measured iterations in milliseconds
+     */
+    private static double[] measure(Task task) throws Exception {
+        for (int i = 0; i < WARMUP; i++) task.run();
+        double[] millis = new double[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            millis[i] = (System.nanoTime() - start) / 1000000.0;
+        }
+        return millis;
+    }
+
+    /**
+     * Run BwlFileDownloader WARMUP times, then ITERATIONS times with time measurement,
+     * each time in a new JVM and into an empty output directory.
+     *
+     * @param args the arguments of the downloader, the output directory is "downloads" in directory
+     * @param directory the directory for the downloads, the metrics and the console output of the runs
+     * @param files the number of files every run has to download
+     * @return the duration of the measured iterations in milliseconds
+     */
+    private static double[] measureDownload(String[] args, File directory, int files) throws Exception {
+        File downloads = new File(directory, "downloads");
+        File metrics = new File(directory, "metrics.json");
+        File console = new File(directory, "console.txt");
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("BwlFileDownloader");
+        command.addAll(Arrays.asList(args));
+        command.add("-M");
+        command.add(metrics.getPath());
+        double[] millis = new double[ITERATIONS];
+        int errors = 0;
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            FileUtils.deleteDirectory(downloads);
+            FileUtils.deleteQuietly(metrics);
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(console).start();
+            int exitCode = process.waitFor();
+            long downloaded = -1;
+            long total = 0;
+            if (metrics.exists()) {
+                JSONObject json = new JSONObject(FileUtils.readFileToString(metrics, "UTF-8"));
+                downloaded = json.getJSONObject("counters").optLong("files_downloaded", 0);
+                total = json.getJSONObject("phases").optLong("totalMillis", 0);
+            }
+            int stored = downloads.exists() ? FileUtils.listFiles(downloads, null, true).size() : 0;
+            if (exitCode != 0 || downloaded != files || stored != files) {
+                errors++;
+                System.out.println("ERROR: run "+(i + 1)+" exit code "+exitCode+", "+downloaded+" files downloaded, "
+                        +stored+" files stored of "+files);
+                int shown = 0;
+                for (String line : FileUtils.readLines(console, "UTF-8")) {
+                    if (line.startsWith("ERROR") && shown++ < 3) System.out.println("    "+line);
+                }
+            }
+            if (i >= WARMUP) millis[i - WARMUP] = total;
+        }
+        if (errors > 0) System.out.println("ERROR: "+errors+" of "+(WARMUP + ITERATIONS)+" runs did not download all files");
+        return millis;
+    }
+
+    /**
+     * Print mean and standard deviation of a benchmark, and the resulting throughput.
+     */
+    private static void report(String name, double[] millis, long items, long bytes) {
+        double mean = 0;
+        for (double m : millis) mean += m;
+        mean /= millis.length;
+        double variance = 0;
+        for (double m : millis) variance += (m - mean) * (m - mean);
+        double stddev = Math.sqrt(variance / Math.max(1, millis.length - 1));
+        System.out.println(String.format(Locale.ROOT, "%-32s %10.1f ms +- %7.1f   %10.1f items/s   %8.1f MB/s",
+                name, mean, stddev, items * 1000.0 / mean, bytes / 1048576.0 * 1000.0 / mean));
+    }
+}
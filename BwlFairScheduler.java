@@ -0,0 +1,144 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * BwlFairScheduler
+ *
+ * A pool of worker threads shared by several owners, e.g. the download jobs of several
+ * accounts. Every owner has its own bounded queue of tasks. The workers take the tasks
+ * from the owners in turn, so an account with many files does not hold up the others.
+ * Submitting to a full queue waits, so an owner can not run far ahead of the workers.
+ */
+public class BwlFairScheduler {
+
+    private final int queueCapacity;
+    private final Map<Object, Lane> lanes = new HashMap<Object, Lane>();
+    private final ArrayDeque<Lane> ready = new ArrayDeque<Lane>();  // lanes with waiting tasks, in turn
+    private final Thread[] workers;
+    private boolean shutdown = false;
+
+    /**
+     * The tasks of one owner.
+     */
+    private static class Lane {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        int running = 0;
+    }
+
+    /**
+     * Create the scheduler and start the worker threads.
+     *
+     * @param threads the number of worker threads
+     * @param queueCapacity the maximum number of waiting tasks per owner
+     */
+    public BwlFairScheduler(int threads, int queueCapacity) {
+        this(threads, queueCapacity, "download");
+    }
+
+    /**
+     * Create the scheduler and start the worker threads.
+     *
+     * @param threads the number of worker threads
+     * @param queueCapacity the maximum number of waiting tasks per owner
+     * @param name the name of the worker threads, followed by their number
+     */
+    public BwlFairScheduler(int threads, int queueCapacity, final String name) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(name + "-" + (i + 1)) {
+                public void run() {
+                    work();
+                }
+            };
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Add a task of an owner. Waits while the queue of the owner is full.
+     *
+     * @param owner the owner of the task
+     * @param task the task
+     */
+    public synchronized void submit(Object owner, Runnable task) throws InterruptedException {
+        if (shutdown) throw new IllegalStateException("scheduler is shut down");
+        Lane lane = lanes.get(owner);
+        if (lane == null) {
+            lane = new Lane();
+            lanes.put(owner, lane);
+        }
+        while (lane.tasks.size() >= queueCapacity) wait();
+        if (lane.tasks.isEmpty()) ready.addLast(lane);
+        lane.tasks.addLast(task);
+        notifyAll();
+    }
+
+    /**
+     * Wait until all tasks of an owner are done.
+     *
+     * @param owner the owner
+     */
+    public synchronized void awaitCompletion(Object owner) throws InterruptedException {
+        Lane lane = lanes.get(owner);
+        if (lane == null) return;
+        while (!lane.tasks.isEmpty() || lane.running > 0) wait();
+        lanes.remove(owner);
+    }
+
+    /**
+     * Remove the tasks of an owner that have not started yet, running tasks are not stopped.
+     * Unlike awaitCompletion this does not wait, so it can be called by a worker thread.
+     *
+     * @param owner the owner
+     */
+    public synchronized void cancel(Object owner) {
+        Lane lane = lanes.remove(owner);
+        if (lane == null) return;
+        lane.tasks.clear();
+        ready.remove(lane);
+        notifyAll();
+    }
+
+    /**
+     * Stop the worker threads once all waiting tasks are done.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+    }
+
+    private void work() {
+        while (true) {
+            Lane lane;
+            Runnable task;
+            synchronized (this) {
+                while (ready.isEmpty() && !shutdown) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (ready.isEmpty()) return;
+                lane = ready.pollFirst();
+                task = lane.tasks.pollFirst();
+                if (!lane.tasks.isEmpty()) ready.addLast(lane);
+                lane.running++;
+                notifyAll();
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                synchronized (this) {
+                    lane.running--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -8,21 +8,49 @@
  * @author Martin Westphal, westphal@de.ibm.com
  * @version 1.1
  */
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-
-import javax.xml.bind.DatatypeConverter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONException;
 import org.apache.wink.json4j.JSONObject;
@@ -35,173 +63,929 @@ import org.apache.wink.json4j.JSONObject;
  * Run it:
  *    java -cp .;commons-io-2.4.jar;wink-json4j-1.3.0.jar BwlFileDownloader <user> <password> <account> 
  * 
+ * Run it for several accounts, listed in a batch file:
+ *    java -cp .;commons-io-2.4.jar;wink-json4j-1.3.0.jar BwlFileDownloader -b <file> 
+ * 
  */
 public class BwlFileDownloader {
 
     // --- The Blueworks Live server info and login
-    private final static String REST_API_SERVER = "https://www.blueworkslive.com";
-    private static String REST_API_USERNAME = "";
-    private static String REST_API_PASSWORD = "";
-    private static String REST_API_ACCOUNT_NAME = "";
+    private String restApiServer = "https://www.blueworkslive.com";
+    private String restApiUsername = "";
+    private String restApiPassword = "";
+    private String restApiAccountName = "";
 
     // --- API call parameters
-    private static String REST_API_FROM = "2012-01-01";
+    private String restApiFrom = "2012-01-01";
 
-    // --- Configuration
-    private static String PATH_OUTPUT = "./downloads";
-    private static String TIME_FROM_FILE = "";
-    private static String TIME_TO_FILE = "./timestamp.txt";
+    // --- Configuration of this account
+    private String pathOutput = "./downloads";
+    private String timeFromFile = "";
+    private String timeToFile = "./timestamp.txt";
+    private boolean useSubdirectories = false;
+    private boolean listOnly = false;
+    private boolean renameFile = false;
+    private boolean notToday = false;
+    private boolean deduplicate = false;  // store identical content only once
+    private String manifestFile = "";     // file to keep track of the downloaded files
+    private String nameCacheFile = "";    // file to keep resolved names between runs
+    private int nameCacheHours = 24;      // time a resolved name remains valid, in the cache file and in watch mode
+    private String archiveFile = "";      // ZIP archive to write the files to, instead of the output directory
+    private int archiveMegabytes = 0;     // size to start a new archive, 0 for no limit
+    private int segmentMegabytes = 0;     // files larger than this are downloaded in segments of this size, 0 for never
+    private String downloadOrder = "list";  // order of the downloads: list, largest, smallest or oldest
+    private boolean verify = false;       // check the files of an earlier download instead of downloading
+    private boolean refetch = false;      // with verify, download the missing and damaged files again
     
+    // --- Configuration shared by all accounts
     private static String NAME_UNKNOWN = "other";  // name to be used if an element name is not given or can not be resolved
-    private static boolean USE_SUBDIRECTORIES = false;
-    private static boolean LIST_ONLY = false;
-    private static boolean RENAME_FILE = false;
-    private static boolean NOT_TODAY = false;
+    private static int PARALLEL_DOWNLOADS = 1;  // number of files downloaded at the same time, by all accounts together
+    private final static int BUFFER_SIZE = 256 * 1024;  // bytes collected before they are written to a file
+    private static int DOWNLOAD_ATTEMPTS = 3;   // a broken download is continued this often
+    final static String BLOB_DIRECTORY = ".blobs";  // subdirectory of the output directory for the content with -x
+    final static String PART_SUFFIX = ".part";              // unfinished download of a file
+    final static String SEGMENT_SUFFIX = ".seg";            // unfinished segmented download of a file
+    final static String SEGMENT_DONE_SUFFIX = ".seg.done";  // the finished segments of it
+    private final static String HASH_ALGORITHM = "SHA-256";
+    private final static int SEGMENT_CONNECTIONS = 4;  // number of segments of one file downloaded at the same time
+    private static String METRICS_FILE = "";      // file for the performance summary, JSON or Prometheus (.prom)
+    private static int PROGRESS_SECONDS = 0;     // interval of the progress line, 0 for none
+    private static int WATCH_SECONDS = 0;        // interval of the runs in watch mode, 0 for a single run
+    private static int VERBOSITY = BwlLog.FILEINFO;  // messages per file on the console
+    private static String LOG_FILE = "";         // file for a JSON record per file
+    
+    // --- State of this account during the run
+    private Date today = new Date();
+    private String todayText = "";
+    private final AtomicInteger fileCount = new AtomicInteger(0);  // successfully downloaded files
+    private final Map<String, String> completed = new ConcurrentHashMap<String, String>();  // upload date by file, downloaded by an earlier run in watch mode without manifest
+    private BwlRestClient restClient = null;
+    private BwlNameCache nameCache = new BwlNameCache();
+    private BwlSyncManifest manifest = null;
+    private BwlArchive archive = null;
+    private BwlFairScheduler scheduler = null;  // the download threads of the current run
+    private Map<String, String> appNames = null;  // app name by processId, from "AppList"
+    
+    // --- State shared by all accounts during the run
+    private final static BwlMetrics METRICS = new BwlMetrics();
+    private static BwlLog LOG = null;
+    final static ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>() {  // copy buffer of each download and verify thread
+    	protected byte[] initialValue() {
+    		return new byte[BUFFER_SIZE];
+    	}
+    };
+    private static volatile boolean STOPPING = false;  // set on shutdown, no more files are started
+    private final static Object WATCH_LOCK = new Object();  // to wake the watch mode from waiting for the next run
+    private static BwlOutputIndex OUTPUT_INDEX = null;  // names in the output directories during a run, reserved by a download
     
     // --- Usage
     private static String USAGE = "Usage: BwlFileDownloader <user> <password> <account> [optional_arguments]\n"
+    		+ "   or: BwlFileDownloader -b <file> [optional_arguments]\n"
     		+ "Optional arguments:\n"
     		+ "  -h          This help message\n"
-    		+ "  -d <path>   Directory to store downloads, default="+PATH_OUTPUT+"\n"
-    		+ "  -f <file>   File to read 'from' date-time, default="+TIME_FROM_FILE+"\n"
-    		+ "  -t <file>   File to write 'today' date-time, default="+TIME_TO_FILE+"\n"
-    		+ "  -s          Use subdirectories, default="+USE_SUBDIRECTORIES+"\n"
-    		+ "  -l          List files only, but do not download, default="+LIST_ONLY+"\n"
-    		+ "  -r          Rename file if a file with the same name already exists, default="+RENAME_FILE+"\n"
-    		+ "  -n          Do not download attachments from today. They will be covered with the next incremental download, default="+NOT_TODAY+"\n"
+    		+ "  -u <url>    Blueworks Live server, default=https://www.blueworkslive.com\n"
+    		+ "  -d <path>   Directory to store downloads, default=./downloads\n"
+    		+ "  -f <file>   File to read 'from' date-time, default=\n"
+    		+ "  -t <file>   File to write 'today' date-time, default=./timestamp.txt\n"
+    		+ "  -s          Use subdirectories, default=false\n"
+    		+ "  -l          List files only, but do not download, default=false\n"
+    		+ "  -r          Rename file if a file with the same name already exists, default=false\n"
+    		+ "  -n          Do not download attachments from today. They will be covered with the next incremental download, default=false\n"
+    		+ "  -p <n>      Number of parallel downloads, for all accounts together, default="+PARALLEL_DOWNLOADS+"\n"
+    		+ "  -m <file>   Manifest of downloaded files, only new or incomplete files will be downloaded, default=\n"
+    		+ "  -x          Store identical files only once in "+BLOB_DIRECTORY+", files are hard links to it, default=false\n"
+    		+ "  -M <file>   Write performance metrics at the end, Prometheus text format if the name ends with .prom, JSON otherwise, default="+METRICS_FILE+"\n"
+    		+ "  -P <sec>    Print a progress line every <sec> seconds, default="+PROGRESS_SECONDS+"\n"
+    		+ "  -c <file>   File to cache resolved subdirectory names between runs, default=\n"
+    		+ "  -e <hours>  Hours a resolved name remains valid, in the cache file and in watch mode, default=24\n"
+    		+ "  -z <file>   Write the files into the ZIP archives <file>-<date>-<time>-<n>.zip instead of the directory,\n"
+    		+ "              one per download thread, default=\n"
+    		+ "  -Z <MB>     Start a new archive when an archive has <MB> megabytes, default=0 (no limit)\n"
+    		+ "  -o <order>  Order of the downloads: list (as returned by the API), largest, smallest or oldest first, default=list\n"
+    		+ "              With -l or another order than list, the complete list is read first, a plan with the size\n"
+    		+ "              and the estimated duration is printed and the free space is checked\n"
+    		+ "  -g <MB>     Download files larger than <MB> megabytes in segments of that size, over up to "+SEGMENT_CONNECTIONS+" of the -p downloads, default=0 (never)\n"
+    		+ "  -v <level>  Messages per file: 0 errors, 1 and warnings, 2 and info, 3 and the file entry (FILEINFO), default="+VERBOSITY+"\n"
+    		+ "  -j <file>   Append a JSON record per file to this file: fileId, path, bytes, duration, messages, default="+LOG_FILE+"\n"
+    		+ "  -V          Verify the files in the directory against the file list instead of downloading: report missing,\n"
+    		+ "              truncated and extra files, with -m also files whose content differs from the manifest, default=false\n"
+    		+ "  -F          With -V, download the missing and damaged files again, default=false\n"
+    		+ "  -w <sec>    Watch mode: keep running and download new files every <sec> seconds, until the process is stopped\n"
+    		+ "Batch mode:\n"
+    		+ "  -b <file>   Download from several accounts in one run. Every line of the file is\n"
+    		+ "              <user> <password> <account> [optional_arguments]\n"
+    		+ "              Empty lines and lines starting with # are ignored, values with spaces can be quoted.\n"
+    		+ "              Optional arguments of the command line apply to all accounts, a line can override them.\n"
+    		+ "              The options -p, -M, -P, -w, -v and -j are allowed on the command line only.\n"
     		;
     
     private static SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd");
+    private final static String NL = System.getProperty("line.separator");
+
+    /**
+     * @param username the user to log in
+     * @param password the password of the user
+     * @param accountName the Blueworks Live account to download from
+     */
+    private BwlFileDownloader (String username, String password, String accountName) {
+    	restApiUsername = username;
+    	restApiPassword = password;
+    	restApiAccountName = accountName;
+    }
 
     public static void main(String[] args) {
-    	int i = 3;
-    	int fileCount = 0;
+    	List<BwlFileDownloader> jobs = new ArrayList<BwlFileDownloader>();
+    	if (args.length > 0 && args[0].equals("-b")) {
+    		if (args.length < 2) printErrorAndExit("option -b requires a filename");
+    		String[] options = Arrays.copyOfRange(args, 2, args.length);
+    		for (String[] line : readBatchFile(args[1])) {
+    			BwlFileDownloader job = new BwlFileDownloader(line[0], line[1], line[2]);
+    			job.parseOptions(options, 0, true);
+    			job.parseOptions(line, 3, false);
+    			jobs.add(job);
+    		}
+    		if (jobs.isEmpty()) printErrorAndExit("no accounts in batch file "+args[1]);
+    	}
+    	else {
+    		if (args.length < 3) printErrorAndExit("missing command line arguments, 3 arguments required");
+    		BwlFileDownloader job = new BwlFileDownloader(args[0], args[1], args[2]);
+    		job.parseOptions(args, 3, true);
+    		jobs.add(job);
+    	}
+    	
+    	// files written by a job must not be shared with another one
+    	Set<File> jobFiles = new HashSet<File>();
+    	for (BwlFileDownloader job : jobs) {
+    		for (String name : new String[] { job.manifestFile, job.nameCacheFile, job.timeToFile, job.archiveFile }) {
+    			if (name.length()>0 && !jobFiles.add(new File(name).getAbsoluteFile())) {
+    				printErrorAndExit("file "+name+" is used by more than one account, use options -m, -c, -t and -z per account");
+    			}
+    		}
+    		if (job.archiveFile.length()>0 && job.deduplicate) printErrorAndExit("option -x can not be used with -z");
+    		if (job.refetch && !job.verify) printErrorAndExit("option -F requires -V");
+    		if (job.verify && (job.archiveFile.length()>0 || job.listOnly || WATCH_SECONDS > 0)) printErrorAndExit("option -V can not be used with -z, -l or -w");
+    	}
+    	
+    	// all accounts share the connections, the rate limit and the download threads
+    	BwlRestClient.setPoolSize(PARALLEL_DOWNLOADS + jobs.size() + 1);
+    	BwlRateLimiter limiter = new BwlRateLimiter(PARALLEL_DOWNLOADS + jobs.size() + 1);
+    	for (BwlFileDownloader job : jobs) {
+    		job.restClient = new BwlRestClient(job.restApiUsername, job.restApiPassword, limiter, METRICS);
+    		job.open();
+    	}
+    	LOG = new BwlLog(VERBOSITY, LOG_FILE.length()>0 ? new File(LOG_FILE) : null);
+    	// bounded queues: the lists are consumed only as fast as the workers can take them
+    	final BwlFairScheduler scheduler = new BwlFairScheduler(PARALLEL_DOWNLOADS, PARALLEL_DOWNLOADS * 4);
+
+        final CountDownLatch stopped = new CountDownLatch(1);
+        if (WATCH_SECONDS > 0) {
+        	// on SIGTERM or Ctrl-C the running downloads are finished and the state is saved
+        	Runtime.getRuntime().addShutdownHook(new Thread("shutdown") {
+        		public void run() {
+        			// printed before the main thread is woken, so it comes before the last messages and DONE
+        			LOG.flush();
+        			System.out.println("INFO: Stopping, waiting for the running downloads");
+        			synchronized (WATCH_LOCK) {
+        				STOPPING = true;
+        				WATCH_LOCK.notifyAll();
+        			}
+        			try {
+        				stopped.await();
+        			} catch (InterruptedException e) {
+        				// stop anyway
+        			}
+        		}
+        	});
+        }
+
+        if (PROGRESS_SECONDS > 0) METRICS.startProgress(PROGRESS_SECONDS);
+        long start = System.currentTimeMillis();
+        int failed = 0;
+        try {
+        	while (true) {
+        		long runStart = System.currentTimeMillis();
+        		failed = runAll(jobs, scheduler);
+        		if (WATCH_SECONDS == 0 || STOPPING) break;
+        		if (METRICS_FILE.length()>0) METRICS.write(new File(METRICS_FILE));
+        		// the next run starts after this one is finished, runs never overlap
+        		long next = Math.max(runStart + WATCH_SECONDS * 1000L, System.currentTimeMillis());
+        		LOG.flush();
+        		System.out.println("Next run at "+new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(next)));
+        		synchronized (WATCH_LOCK) {
+        			long wait;
+        			while (!STOPPING && (wait = next - System.currentTimeMillis()) > 0) WATCH_LOCK.wait(wait);
+        		}
+        		if (STOPPING) break;
+        	}
+        } catch (InterruptedException e) {
+        	e.printStackTrace();
+        } finally {
+        	for (BwlFileDownloader job : jobs) job.close();
+        	scheduler.shutdown();
+        	LOG.close();
+        	METRICS.stopProgress();
+        	METRICS.phase("total", System.currentTimeMillis() - start);
+        	if (METRICS_FILE.length()>0) METRICS.write(new File(METRICS_FILE));
+        	if (PROGRESS_SECONDS > 0) System.out.println(METRICS.progressLine());
+        	System.out.println("DONE");
+        	stopped.countDown();
+        }
+        if (failed > 0 && WATCH_SECONDS == 0) System.exit(1);
+    }
+
+    /**
+     * Run the downloads of all accounts once, at the same time.
+     * 
+     * @param jobs the accounts
+     * @param scheduler the download threads shared by all accounts
+     * @return the number of accounts whose file list could not be processed completely
+     */
+    private static int runAll (List<BwlFileDownloader> jobs, final BwlFairScheduler scheduler) throws InterruptedException {
+    	final AtomicInteger failed = new AtomicInteger(0);
+    	// the directories are listed again in every run, files may have been changed in between
+    	OUTPUT_INDEX = new BwlOutputIndex();
+    	if (jobs.size() == 1) {
+    		if (!jobs.get(0).run(scheduler)) failed.incrementAndGet();
+    	}
+    	else {
+    		// one thread per account reads the file list, the downloads run in the scheduler
+    		List<Thread> threads = new ArrayList<Thread>();
+    		for (final BwlFileDownloader job : jobs) {
+    			Thread thread = new Thread("account-" + job.restApiAccountName) {
+    				public void run() {
+    					if (!job.run(scheduler)) failed.incrementAndGet();
+    				}
+    			};
+    			thread.start();
+    			threads.add(thread);
+    		}
+    		for (Thread thread : threads) thread.join();
+    	}
+    	return failed.get();
+    }
+
+    /**
+     * Parse the optional arguments for this account. Options that apply to all accounts
+     * are only accepted from the command line.
+     * 
+     * @param args the arguments
+     * @param i the index of the first optional argument
+     * @param commandLine true if the arguments are from the command line, false if from the batch file
+     */
+    private void parseOptions (String[] args, int i, boolean commandLine) {
     	String arg;
-    	if (args.length < i) printErrorAndExit("missing command line arguments, 3 arguments required");
-    	REST_API_USERNAME = args[0];
-    	REST_API_PASSWORD = args[1];
-    	REST_API_ACCOUNT_NAME = args[2];
-    	Date today = new Date();
-        
     	while (i < args.length && args[i].startsWith("-")) {
             arg = args[i++];
+            if (!commandLine && (arg.equals("-p") || arg.equals("-M") || arg.equals("-P") || arg.equals("-w") || arg.equals("-v") || arg.equals("-j") || arg.equals("-b"))) {
+            	printErrorAndExit("option "+arg+" is allowed on the command line only, not in the batch file");
+            }
     		if (arg.equals("-h")) printErrorAndExit("");
     		else if (arg.equals("-s")) {
-    			USE_SUBDIRECTORIES = true;
+    			useSubdirectories = true;
             }
     		else if (arg.equals("-l")) {
-    			LIST_ONLY = true;
+    			listOnly = true;
             }
     		else if (arg.equals("-r")) {
-    			RENAME_FILE = true;
+    			renameFile = true;
             }
     		else if (arg.equals("-n")) {
-    			NOT_TODAY = true;
+    			notToday = true;
+            }
+    		else if (arg.equals("-x")) {
+    			deduplicate = true;
+            }
+    		else if (arg.equals("-V")) {
+    			verify = true;
+            }
+    		else if (arg.equals("-F")) {
+    			refetch = true;
+            }
+    		else if (arg.equals("-u")) {
+                if (i < args.length) restApiServer = args[i++].replaceAll("/+$", "");
+                else printErrorAndExit("option -u requires a URL"); 
             }
     		else if (arg.equals("-d")) {
-                if (i < args.length) PATH_OUTPUT = args[i++];
+                if (i < args.length) pathOutput = args[i++];
                 else printErrorAndExit("option -d requires a path"); 
             }
     		else if (arg.equals("-f")) {
-                if (i < args.length) TIME_FROM_FILE = args[i++];
+                if (i < args.length) timeFromFile = args[i++];
                 else printErrorAndExit("option -f requires a filename"); 
             }
     		else if (arg.equals("-t")) {
-                if (i < args.length) TIME_TO_FILE = args[i++];
+                if (i < args.length) timeToFile = args[i++];
                 else printErrorAndExit("option -t requires a filename"); 
+            }
+    		else if (arg.equals("-p")) {
+                if (i < args.length) PARALLEL_DOWNLOADS = parsePositiveInt(args[i++], "-p");
+                else printErrorAndExit("option -p requires a number"); 
+            }
+    		else if (arg.equals("-m")) {
+                if (i < args.length) manifestFile = args[i++];
+                else printErrorAndExit("option -m requires a filename"); 
+            }
+    		else if (arg.equals("-M")) {
+                if (i < args.length) METRICS_FILE = args[i++];
+                else printErrorAndExit("option -M requires a filename"); 
+            }
+    		else if (arg.equals("-P")) {
+                if (i < args.length) PROGRESS_SECONDS = parsePositiveInt(args[i++], "-P");
+                else printErrorAndExit("option -P requires a number"); 
+            }
+    		else if (arg.equals("-v")) {
+                if (i < args.length && args[i].matches("[0-3]")) VERBOSITY = Integer.parseInt(args[i++]);
+                else printErrorAndExit("option -v requires a level from 0 to 3"); 
+            }
+    		else if (arg.equals("-j")) {
+                if (i < args.length) LOG_FILE = args[i++];
+                else printErrorAndExit("option -j requires a filename"); 
+            }
+    		else if (arg.equals("-w")) {
+                if (i < args.length) WATCH_SECONDS = parsePositiveInt(args[i++], "-w");
+                else printErrorAndExit("option -w requires a number"); 
+            }
+    		else if (arg.equals("-c")) {
+                if (i < args.length) nameCacheFile = args[i++];
+                else printErrorAndExit("option -c requires a filename"); 
+            }
+    		else if (arg.equals("-e")) {
+                if (i < args.length) nameCacheHours = parsePositiveInt(args[i++], "-e");
+                else printErrorAndExit("option -e requires a number"); 
+            }
+    		else if (arg.equals("-z")) {
+                if (i < args.length) archiveFile = args[i++];
+                else printErrorAndExit("option -z requires a filename"); 
+            }
+    		else if (arg.equals("-o")) {
+                if (i < args.length) downloadOrder = args[i++];
+                else printErrorAndExit("option -o requires an order"); 
+                if (!Arrays.asList("list", "largest", "smallest", "oldest").contains(downloadOrder)) {
+                	printErrorAndExit("option -o requires list, largest, smallest or oldest, got "+downloadOrder);
+                }
+            }
+    		else if (arg.equals("-g")) {
+                if (i < args.length) segmentMegabytes = parsePositiveInt(args[i++], "-g");
+                else printErrorAndExit("option -g requires a number"); 
+            }
+    		else if (arg.equals("-Z")) {
+                if (i < args.length) archiveMegabytes = parsePositiveInt(args[i++], "-Z");
+                else printErrorAndExit("option -Z requires a number"); 
             }
     		else  {
     			printErrorAndExit("unknown command line option "+arg);
             }
     	}
-    	
-    	System.out.println("Downloading files from Blueworks Live account "+REST_API_ACCOUNT_NAME+" for user "+REST_API_USERNAME);
-    	System.out.println("Will store files in directory: " + PATH_OUTPUT);
-    	if (TIME_FROM_FILE.length()>0) {
-    		REST_API_FROM = readDate(TIME_FROM_FILE);
-        	System.out.println("From date: " + REST_API_FROM);
+    }
+
+    /**
+     * Read the accounts of the batch mode. Every line is split into arguments at white space,
+     * a value in double quotes may contain white space.
+     * 
+     * @param filename the batch file
+     * @return the arguments of every account, at least user, password and account
+     */
+    private static List<String[]> readBatchFile (String filename) {
+    	List<String[]> lines = new ArrayList<String[]>();
+    	BufferedReader reader = null;
+    	try {
+    		reader = new BufferedReader(new InputStreamReader(new FileInputStream(filename), "UTF-8"));
+    		String line;
+    		int number = 0;
+    		while ((line = reader.readLine()) != null) {
+    			number++;
+    			line = line.trim();
+    			if (line.length() == 0 || line.startsWith("#")) continue;
+    			List<String> args = new ArrayList<String>();
+    			StringBuilder arg = null;
+    			boolean quoted = false;
+    			for (int i = 0; i < line.length(); i++) {
+    				char c = line.charAt(i);
+    				if (c == '"') {
+    					quoted = !quoted;
+    					if (arg == null) arg = new StringBuilder();
+    				}
+    				else if (Character.isWhitespace(c) && !quoted) {
+    					if (arg != null) args.add(arg.toString());
+    					arg = null;
+    				}
+    				else {
+    					if (arg == null) arg = new StringBuilder();
+    					arg.append(c);
+    				}
+    			}
+    			if (arg != null) args.add(arg.toString());
+    			if (quoted || args.size() < 3) {
+    				printErrorAndExit("invalid line "+number+" in batch file "+filename+", <user> <password> <account> required");
+    			}
+    			lines.add(args.toArray(new String[args.size()]));
+    		}
+    	} catch (IOException e) {
+    		printErrorAndExit("could not read batch file "+filename+": "+e.getMessage());
+    	} finally {
+    		if (reader != null) {
+    			try { reader.close(); } catch (IOException e) {
+    				e.printStackTrace();
+    			}
+    		}
+    	}
+    	return lines;
+    }
+
+    /**
+     * Prepare the download for this account: read the 'from' date, the name cache and the
+     * manifest. Exits if one of them can not be read, before any account starts downloading.
+     */
+    private void open () {
+    	System.out.println("Downloading files from Blueworks Live account "+restApiAccountName+" for user "+restApiUsername);
+    	System.out.println("Will store files in directory: " + pathOutput);
+    	if (timeFromFile.length()>0) {
+    		restApiFrom = readDate(timeFromFile);
+        	System.out.println("From date: " + restApiFrom);
+    	}
+    	nameCache = new BwlNameCache(nameCacheFile.length()>0 ? new File(nameCacheFile) : null, nameCacheHours * 3600000L);
+    	nameCache.load();
+    	if (manifestFile.length()>0) {
+    		manifest = new BwlSyncManifest(new File(manifestFile));
+    		try {
+    			manifest.open();
+    		} catch (IOException e) {
+    			printErrorAndExit("could not read manifest "+manifestFile+": "+e.getMessage());
+    		}
+        	System.out.println("Manifest: " + manifest.size() + " files downloaded before");
     	}
     	System.out.println("------------------------------------------------------------------------------");
-    	
+    }
 
+    /**
+     * Download the files of this account. The list is read by the calling thread,
+     * the files are downloaded by the workers of the scheduler.
+     * In watch mode this is called for every run, the names, the manifest and the
+     * connections are kept from the runs before.
+     * 
+     * @param scheduler the download threads shared by all accounts
+     * @return true if the file list was processed completely
+     */
+    private boolean run (BwlFairScheduler scheduler) {
+        this.scheduler = scheduler;
+        boolean complete = false;
+        boolean failed = false;  // verify found damaged files
+        long start = System.currentTimeMillis();
+        today = new Date();
+        todayText = formatDate(today);
+        fileCount.set(0);
+        if (WATCH_SECONDS > 0) {
+        	// new apps and elements may have been added since the last run
+        	appNames = null;
+        	nameCache.refresh(NAME_UNKNOWN);
+        }
         try {
+        	if (archiveFile.length()>0) {
+        		String name = FilenameUtils.removeExtension(archiveFile) + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(today) + ".zip";
+        		archive = new BwlArchive(new File(name), archiveMegabytes * 1048576L);
+        		System.out.println("Will store files of account "+restApiAccountName+" in archives: " + FilenameUtils.removeExtension(name) + "-<n>.zip");
+        	}
             InputStream restApiStream = getFileListData();
+            METRICS.phase("list_request", System.currentTimeMillis() - start);
             try {
-                JSONObject appListResult = new JSONObject(restApiStream);
-            	//System.out.println(appListResult.toString(2));
-                
-                JSONArray files = (JSONArray) appListResult.get("files");
-            	JSONObject file = null;
-                for (Object objFile : files) {
-                	file = (JSONObject)objFile; // contains: fileId, fileName, fileSize, uploadUserId, uploadDate, attachedToType, attachedToId
-                	String fileId = file.getString("fileId");
-                	String fileName = file.getString("fileName");
-                	String type = file.has("attachedToType")?file.getString("attachedToType"):"other"; // process, policy, decision, post, instance, app, ???
-                	String typeId = file.has("attachedToId")?file.getString("attachedToId"):null;
-                	String uploadDate = file.getString("uploadDate");
-                	String path = PATH_OUTPUT;
-                	
-                	path = FilenameUtils.concat(path, "");
-                	
-                	if (NOT_TODAY && uploadDate.startsWith(DATE_FORMAT.format(today))) {
-                		System.out.println("INFO: Will skip this file because it is from today, id= "+fileId+" name="+fileName);
-                		continue;
-                	}
-                	
-                	/*
-                	 * Store the file in a subdirectory named by the type and within in another subdirectory named by process, ...
-                	 */
-                	if (USE_SUBDIRECTORIES) {
-            			String name = "";
-                		path = FilenameUtils.concat(path, type);
-                		try {
-                			if (type.equalsIgnoreCase("process"))
-                				name = getProcessName(typeId);
-                			else if (type.equalsIgnoreCase("app"))
-                				name = getAppNameByProcessId(typeId);
-                			else if (type.equalsIgnoreCase("instance"))
-                				name = getInstanceName(typeId);
-                		} catch (Exception e) {
-                			e.printStackTrace();
-                			path = FilenameUtils.concat(path, NAME_UNKNOWN);
-                		}
-                		if (name != "") {
-                			String subdir = toValidFileName(name);
-            				path = FilenameUtils.concat(path, subdir);
-                		}
-                	}
-
-                	if (LIST_ONLY) {
-                		System.out.println("INFO: Would download file id="+fileId+" name="+fileName+" to "+path);
-                	}
-                	else {
-                		System.out.println("INFO: Will download file id="+fileId+" name="+fileName+" to "+path);
-                		InputStream inputStream = getFileData(fileId);
-                		if (inputStream == null) {
-                			System.out.println("ERROR: could not download file id="+fileId+" name="+fileName+" - will skip this file");
-                		}
-                		else if (writeFileData (inputStream,path,fileName)) {
-                			fileCount++;
-                			System.out.println("INFO: #"+fileCount+" downloaded file id="+fileId+" name="+fileName+" to "+PATH_OUTPUT);
-                			System.out.println("FILEINFO: "+file.toString(0));
-                			System.out.println("");
-                		}
+                BwlFileListParser files = new BwlFileListParser(restApiStream);
+                if (verify) {
+                	if (!verify(files, scheduler)) failed = true;
+                }
+                else if (listOnly || !downloadOrder.equals("list")) {
+                	for (JSONObject file : plan(files)) {
+                		if (STOPPING) break;
+                		submit(scheduler, file);
                 	}
-                	//System.out.println("Done");
                 }
-                
+                else {
+                	// the list is parsed one file at a time, downloads start while the rest of it is still read
+                	JSONObject nextFile;
+                	while (!STOPPING && (nextFile = files.next()) != null) submit(scheduler, nextFile);
+                }
             } finally {
+                scheduler.awaitCompletion(this);
                 restApiStream.close();
-            	System.out.println("------------------------------------------------------------------------------");
-            	System.out.println("Downloaded "+fileCount+" files to directory: " + PATH_OUTPUT);
-            	if (TIME_TO_FILE.length()>0) writeDate(TIME_TO_FILE,today);
-            	System.out.println("DONE");
-                
             }
-
+            complete = !STOPPING && !failed;
+            // the next run in watch mode lists the files from today on, like a run with -f
+            if (complete && WATCH_SECONDS > 0) {
+            	restApiFrom = todayText;
+            	// older files are not listed again, only the files from today have to be remembered
+            	for (Iterator<String> uploadDates = completed.values().iterator(); uploadDates.hasNext(); ) {
+            		if (uploadDates.next().compareTo(restApiFrom) < 0) uploadDates.remove();
+            	}
+            }
         } catch (Exception e) {
+        	System.err.println("ERROR: could not download the files of account "+restApiAccountName+": "+e.getMessage());
             e.printStackTrace();
+        } finally {
+            nameCache.save(NAME_UNKNOWN);
+            if (archive != null) {
+            	try {
+            		archive.close();
+            	} catch (IOException e) {
+            		System.err.println("ERROR: could not write archive of account "+restApiAccountName+": "+e.getMessage());
+            		complete = false;
+            	}
+            	archive = null;
+            }
+        	LOG.flush();
+        	System.out.println("------------------------------------------------------------------------------");
+        	System.out.println("Downloaded "+fileCount.get()+" files of account "+restApiAccountName+" to directory: " + pathOutput);
+        	// a verification does not look for new files, the next incremental run starts at the same date
+        	if (complete && timeToFile.length()>0 && !verify) writeDate(timeToFile,today);
         }
+        return complete;
+    }
+
+    /**
+     * Add a file of the list to the downloads of this account.
+     * 
+     * @param scheduler the download threads shared by all accounts
+     * @param file the file entry, contains: fileId, fileName, fileSize, uploadUserId, uploadDate, attachedToType, attachedToId
+     */
+    private void submit (BwlFairScheduler scheduler, final JSONObject file) throws InterruptedException {
+    	scheduler.submit(this, new Runnable() {
+    		public void run() {
+    			if (!STOPPING) processFile(file);
+    		}
+    	});
+    }
+
+    /**
+     * Read the complete file list and print a plan of the files that are not downloaded yet:
+     * their number and size by type, and the duration estimated from the measured throughput.
+     * Before a download, check that the output directory has enough free space.
+     * 
+     * @param files the file list
+     * @return all files of the list, sorted by downloadOrder
+     */
+    private List<JSONObject> plan (BwlFileListParser files) throws IOException, JSONException {
+    	List<JSONObject> all = new ArrayList<JSONObject>();
+    	Map<String, long[]> types = new TreeMap<String, long[]>();  // files and bytes by attachedToType
+    	long pendingFiles = 0;
+    	long pendingBytes = 0;
+    	long unknownSize = 0;
+    	JSONObject file;
+    	while ((file = files.next()) != null) {
+    		all.add(file);
+    		String fileId = file.getString("fileId");
+    		String uploadDate = file.getString("uploadDate");
+    		long fileSize = file.has("fileSize")?file.optLong("fileSize", -1):-1;
+    		if (notToday && uploadDate.startsWith(todayText)) continue;
+    		if (completed.containsKey(fileId + " " + uploadDate + " " + fileSize)) continue;
+    		if (manifest != null && isStored(manifest.get(fileId), uploadDate, fileSize)) continue;
+    		String type = file.has("attachedToType")?file.getString("attachedToType"):"other";
+    		long[] sum = types.get(type);
+    		if (sum == null) types.put(type, sum = new long[2]);
+    		sum[0]++;
+    		pendingFiles++;
+    		if (fileSize >= 0) {
+    			sum[1] += fileSize;
+    			pendingBytes += fileSize;
+    		}
+    		else unknownSize++;
+    	}
+    	
+    	StringBuilder log = new StringBuilder();
+    	log.append("PLAN: account "+restApiAccountName+": "+all.size()+" files in the list, "+pendingFiles+" to download with "
+    			+toMegabytes(pendingBytes)+(unknownSize > 0 ? ", "+unknownSize+" files of unknown size" : "")).append(NL);
+    	for (Map.Entry<String, long[]> type : types.entrySet()) {
+    		log.append("PLAN:   "+type.getKey()+": "+type.getValue()[0]+" files, "+toMegabytes(type.getValue()[1])).append(NL);
+    	}
+    	long throughput = getThroughput();
+    	if (throughput > 0) {
+    		long seconds = pendingBytes / (throughput * PARALLEL_DOWNLOADS) + 1;
+    		log.append(String.format(Locale.ROOT, "PLAN: estimated duration %d:%02d:%02d at %.2f MB/s per download, %d parallel downloads",
+    				seconds / 3600, seconds / 60 % 60, seconds % 60, throughput / 1048576.0, PARALLEL_DOWNLOADS)).append(NL);
+    	}
+    	else {
+    		log.append("PLAN: no estimated duration, the throughput is measured with the first downloads or taken from the metrics file of -M").append(NL);
+    	}
+    	if (!listOnly) {
+    		File target = new File(archive != null ? archiveFile : FilenameUtils.concat(pathOutput, "x")).getAbsoluteFile().getParentFile();
+    		while (target != null && !target.exists()) target = target.getParentFile();
+    		long free = target != null ? target.getUsableSpace() : 0;
+    		if (free > 0) {
+    			log.append("PLAN: free space in "+target+": "+toMegabytes(free)).append(NL);
+    			if (free < pendingBytes) {
+    				System.out.print(log);
+    				throw new IOException("not enough free space in "+target+" for "+toMegabytes(pendingBytes));
+    			}
+    		}
+    	}
+    	System.out.print(log);
+    	
+    	if (downloadOrder.equals("largest")) Collections.sort(all, new FileOrder("fileSize", true));
+    	else if (downloadOrder.equals("smallest")) Collections.sort(all, new FileOrder("fileSize", false));
+    	else if (downloadOrder.equals("oldest")) Collections.sort(all, new FileOrder("uploadDate", false));
+    	return all;
+    }
+    
+    /**
+     * @return the measured bytes per second of one download, in this process or in the run
+     *         that wrote the JSON metrics file, 0 if unknown
+     */
+    private static long getThroughput () {
+    	long throughput = METRICS.getBytesPerSecond("transfer");
+    	if (throughput > 0) return throughput;
+    	File metrics = new File(METRICS_FILE);
+    	if (METRICS_FILE.length() == 0 || METRICS_FILE.endsWith(".prom") || !metrics.exists()) return 0;
+    	try {
+    		JSONObject transfer = new JSONObject(FileUtils.readFileToString(metrics, "UTF-8")).getJSONObject("operations").getJSONObject("transfer");
+    		long millis = transfer.getLong("totalMillis");
+    		return millis > 0 ? transfer.getLong("bytes") * 1000 / millis : 0;
+    	} catch (Exception e) {
+    		return 0;
+    	}
+    }
+    
+    private static String toMegabytes (long bytes) {
+    	return String.format(Locale.ROOT, "%.1f MB", bytes / 1048576.0);
+    }
+
+    /**
+     * Sorts files by size or upload date, files without the value at the end.
+     */
+    private static class FileOrder implements Comparator<JSONObject> {
+    	private final String key;
+    	private final boolean descending;
+    	
+    	FileOrder (String key, boolean descending) {
+    		this.key = key;
+    		this.descending = descending;
+    	}
+    	
+    	public int compare (JSONObject a, JSONObject b) {
+    		if (!a.has(key) || !b.has(key)) return (a.has(key) ? 0 : 1) - (b.has(key) ? 0 : 1);
+    		int result = 0;
+    		try {
+    			result = key.equals("fileSize") ? Long.compare(a.optLong(key, 0), b.optLong(key, 0))
+    					: a.optString(key, "").compareTo(b.optString(key, ""));
+    		} catch (JSONException e) {
+    			// keep the order of the list
+    		}
+    		return descending ? -result : result;
+    	}
+    }
+
+    /**
+     * Check the files of an earlier download against the file list, instead of downloading them.
+     * The local file of every file in the list is determined by the download threads, because the
+     * subdirectories may need API calls, the files are checked by one thread per processor.
+     * With a manifest, the content hashes are compared, and added for the files that have none yet.
+     * With refetch, the missing and damaged files are downloaded again afterwards and checked again.
+     * 
+     * @param files the file list
+     * @param scheduler the download threads shared by all accounts
+     * @return true if no file is missing or damaged, with refetch after the downloads
+     */
+    private boolean verify (BwlFileListParser files, BwlFairScheduler scheduler) throws IOException, JSONException, InterruptedException {
+    	final BwlVerifier verifier = new BwlVerifier(HASH_ALGORITHM, Runtime.getRuntime().availableProcessors());
+    	int listed = 0;
+    	JSONObject nextFile;
+    	while ((nextFile = files.next()) != null) {
+    		final JSONObject file = nextFile;
+    		if (notToday && file.getString("uploadDate").startsWith(todayText)) continue;
+    		listed++;
+    		scheduler.submit(this, new Runnable() {
+    			public void run() {
+    				try {
+    					verifyFile(file, verifier);
+    				} catch (Exception e) {
+    					System.err.println("ERROR: could not verify file "+file+": "+e);
+    				}
+    			}
+    		});
+    	}
+    	scheduler.awaitCompletion(this);
+    	
+    	// the files of the downloader itself are not extra files, the verifier knows the blobs and temporary files
+    	Set<File> ignored = new HashSet<File>();
+    	for (String name : new String[] { manifestFile, nameCacheFile, timeFromFile, timeToFile, METRICS_FILE, LOG_FILE }) {
+    		if (name.length() == 0) continue;
+    		ignored.add(new File(name));
+    		ignored.add(new File(name + ".tmp"));
+    	}
+    	List<BwlVerifier.Result> results = verifier.finish(new File(pathOutput), ignored);
+    	Collections.sort(results, new Comparator<BwlVerifier.Result>() {
+    		public int compare (BwlVerifier.Result a, BwlVerifier.Result b) {
+    			return a.path.compareTo(b.path);
+    		}
+    	});
+    	
+    	Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+    	for (String status : new String[] { BwlVerifier.OK, BwlVerifier.MISSING, BwlVerifier.TRUNCATED, BwlVerifier.WRONG_SIZE,
+    			BwlVerifier.CORRUPT, BwlVerifier.UNREADABLE, BwlVerifier.OUTDATED, BwlVerifier.ARCHIVED, BwlVerifier.EXTRA }) {
+    		counts.put(status, 0);
+    	}
+    	List<BwlVerifier.Result> damaged = new ArrayList<BwlVerifier.Result>();
+    	StringBuilder log = new StringBuilder();
+    	for (BwlVerifier.Result result : results) {
+    		counts.put(result.status, counts.get(result.status) + 1);
+    		if (result.file == null) {
+    			log.append("VERIFY: "+result.status+" "+result.path+", "+result.size+" bytes").append(NL);
+    			continue;
+    		}
+    		String fileId = result.file.getString("fileId");
+    		if (result.isBad()) {
+    			damaged.add(result);
+    			log.append("VERIFY: "+result.status+" "+result.path+" id="+fileId+" name="+result.file.getString("fileName")
+    					+(result.size >= 0 && result.size != result.fileSize ? ", "+result.size+" of "+result.fileSize+" bytes" : "")).append(NL);
+    		}
+    		else if (result.hash != null && manifest != null) {
+    			// with the hash, the next verification finds damaged content as well
+    			BwlSyncManifest.Entry entry = manifest.get(fileId);
+    			if (entry == null || entry.hash == null) {
+    				manifest.put(new BwlSyncManifest.Entry(fileId, result.file.getString("uploadDate"), result.fileSize, result.path.getPath(), result.hash, true));
+    			}
+    		}
+    	}
+    	log.append("VERIFY: account "+restApiAccountName+": "+listed+" files in the list");
+    	for (Map.Entry<String, Integer> count : counts.entrySet()) {
+    		if (count.getValue() > 0 || count.getKey().equals(BwlVerifier.OK)) log.append(", "+count.getValue()+" "+count.getKey());
+    	}
+    	log.append(NL);
+    	System.out.print(log);
+    	
+    	if (refetch && !damaged.isEmpty()) {
+    		System.out.println("VERIFY: will download "+damaged.size()+" files again");
+    		for (BwlVerifier.Result result : damaged) {
+    			if (!result.status.equals(BwlVerifier.MISSING) && !result.status.equals(BwlVerifier.OUTDATED)) {
+    				// a damaged file is replaced, also if the manifest has it as complete
+    				Files.deleteIfExists(result.path.toPath());
+    				BwlSyncManifest.Entry entry = manifest != null ? manifest.get(result.file.getString("fileId")) : null;
+    				// the file may be a hard link to its blob, then the blob is damaged as well
+    				if (deduplicate && entry != null && entry.hash != null) Files.deleteIfExists(getBlobFile(entry.hash).toPath());
+    			}
+    			submit(scheduler, result.file);
+    		}
+    		scheduler.awaitCompletion(this);
+    		
+    		// the result is the state after the downloads, a file that could not be downloaded is still damaged
+    		BwlVerifier recheck = new BwlVerifier(HASH_ALGORITHM, Runtime.getRuntime().availableProcessors());
+    		for (BwlVerifier.Result result : damaged) verifyFile(result.file, recheck);
+    		damaged.clear();
+    		for (BwlVerifier.Result result : recheck.finish(null, ignored)) {
+    			if (!result.isBad()) continue;
+    			damaged.add(result);
+    			System.out.println("VERIFY: still "+result.status+" "+result.path+" id="+result.file.getString("fileId")+" name="+result.file.getString("fileName"));
+    		}
+    		System.out.println("VERIFY: account "+restApiAccountName+": "+damaged.size()+" files are still missing or damaged");
+    	}
+    	return damaged.isEmpty();
+    }
+    
+    /**
+     * Determine the local file of a file of the list and start its check. The manifest knows
+     * the name of a file, also if it was renamed, otherwise the name from the list is expected.
+     * 
+     * @param file the file entry of the list
+     * @param verifier checks the files
+     */
+    private void verifyFile (JSONObject file, BwlVerifier verifier) throws JSONException, InterruptedException {
+    	String fileId = file.getString("fileId");
+    	String fileName = file.getString("fileName");
+    	String type = file.has("attachedToType")?file.getString("attachedToType"):"other";
+    	String typeId = file.has("attachedToId")?file.getString("attachedToId"):null;
+    	String uploadDate = file.getString("uploadDate");
+    	long fileSize = file.has("fileSize")?file.optLong("fileSize", -1):-1;
+    	BwlSyncManifest.Entry entry = manifest != null ? manifest.get(fileId) : null;
+    	if (entry != null) {
+    		File output = new File(entry.path);
+    		if (BwlArchive.getArchiveFile(entry.path) != null) verifier.report(file, output, fileSize, BwlVerifier.ARCHIVED);
+    		else if (!entry.uploadDate.equals(uploadDate) || entry.fileSize != fileSize) verifier.report(file, output, fileSize, BwlVerifier.OUTDATED);
+    		else verifier.check(file, output, fileSize, entry.hash, true);
+    		return;
+    	}
+    	String path = FilenameUtils.concat(pathOutput, "");
+    	if (useSubdirectories) {
+    		for (String subdir : getFolder(type, typeId).split("/")) path = FilenameUtils.concat(path, subdir);
+    	}
+    	verifier.check(file, new File(path, fileName), fileSize, null, manifest != null);
+    }
+
+    /**
+     * Finish this account at the end of the process.
+     */
+    private void close () {
+    	if (manifest != null) manifest.close();
+    }
+
+    /**
+     * Handle a single entry of the file list: resolve the target directory and download the file.
+     * All messages for the file are collected and printed at once, so that the output of
+     * parallel downloads is not interleaved. Any error is reported and only affects this file.
+     * 
+     * @param file the file entry from the "ListFiles" result
+     */
+    private void processFile (JSONObject file) {
+        StringBuilder log = new StringBuilder();
+        BwlLog.Record record = new BwlLog.Record(restApiAccountName, file, log);
+        try {
+        	String fileId = file.getString("fileId");
+        	String fileName = file.getString("fileName");
+        	String type = file.has("attachedToType")?file.getString("attachedToType"):"other"; // process, policy, decision, post, instance, app, ???
+        	String typeId = file.has("attachedToId")?file.getString("attachedToId"):null;
+        	String uploadDate = file.getString("uploadDate");
+        	long fileSize = file.has("fileSize")?file.optLong("fileSize", -1):-1;
+        	String path = pathOutput;
+        	String folder = "";  // the subdirectories of path, for the entry name in an archive
+        	
+        	path = FilenameUtils.concat(path, "");
+        	
+        	if (notToday && uploadDate.startsWith(todayText)) {
+        		log.append("INFO: Will skip this file because it is from today, id= "+fileId+" name="+fileName).append(NL);
+        		METRICS.count("files_skipped");
+        		record.setResult("skipped", null, 0);
+        		return;
+        	}
+        	
+        	String completedKey = fileId + " " + uploadDate + " " + fileSize;
+        	if (completed.containsKey(completedKey)) {
+        		log.append("INFO: Already downloaded file id="+fileId+" name="+fileName).append(NL);
+        		METRICS.count("files_skipped");
+        		record.setResult("skipped", null, 0);
+        		return;
+        	}
+        	if (manifest != null && isStored(manifest.get(fileId), uploadDate, fileSize)) {
+        		log.append("INFO: Already downloaded file id="+fileId+" name="+fileName).append(NL);
+        		METRICS.count("files_skipped");
+        		record.setResult("skipped", null, 0);
+        		return;
+        	}
+        	if (manifest != null && deduplicate && restoreFromBlob(manifest.get(fileId), uploadDate, fileSize, log)) {
+        		log.append("INFO: Restored file id="+fileId+" name="+fileName+" from a blob, no download needed").append(NL);
+        		METRICS.count("files_skipped");
+        		record.setResult("skipped", null, 0);
+        		return;
+        	}
+        	
+        	/*
+        	 * Store the file in a subdirectory named by the type and within in another subdirectory named by process, ...
+        	 */
+        	if (useSubdirectories) {
+        		folder = getFolder(type, typeId);
+        		for (String subdir : folder.split("/")) path = FilenameUtils.concat(path, subdir);
+        	}
+
+        	if (listOnly) {
+        		log.append("INFO: Would download file id="+fileId+" name="+fileName+" to "+path).append(NL);
+        		METRICS.count("files_listed");
+        		record.setResult("listed", path, 0);
+        	}
+        	else {
+        		log.append("INFO: Will download file id="+fileId+" name="+fileName+" to "+path).append(NL);
+        		Download download = archive != null ? archiveFile(fileId, folder + fileName, fileSize, log)
+        				: downloadFile(fileId, path, fileName, fileSize, log);
+        		if (manifest != null) {
+        			String outputPath = download != null ? download.path : new File(path, fileName).getPath();
+        			String hash = download != null ? download.hash : null;
+        			manifest.put(new BwlSyncManifest.Entry(fileId, uploadDate, fileSize, outputPath, hash, download != null));
+        		}
+        		if (download == null) {
+        			log.append("ERROR: could not download file id="+fileId+" name="+fileName+" - will skip this file").append(NL);
+        			METRICS.count("files_failed");
+        			record.setResult("failed", null, 0);
+        		}
+        		else {
+        			int count = fileCount.incrementAndGet();
+        			if (WATCH_SECONDS > 0 && manifest == null) completed.put(completedKey, uploadDate);
+        			METRICS.count("files_downloaded");
+        			log.append("INFO: #"+count+" downloaded file id="+fileId+" name="+fileName+" to "+pathOutput).append(NL);
+        			record.setResult("downloaded", download.path, download.bytes);
+        		}
+        	}
+        } catch (Exception e) {
+        	log.append("ERROR: could not process file "+file+" - will skip this file: "+e).append(NL);
+        	METRICS.count("files_failed");
+        	record.setResult("failed", null, 0);
+        } finally {
+        	// the messages are printed by the log thread, FILEINFO is formatted there as well
+        	LOG.add(record);
+        }
+    }
+
+    /**
+     * Get the subdirectories of a file with useSubdirectories: a subdirectory named by the type
+     * and within another one named by the process, app, instance, ...
+     * 
+     * @param type the attachedToType of the file
+     * @param typeId the attachedToId of the file, may be null
+     * @return the subdirectories, separated and ended by "/"
+     */
+    private String getFolder (String type, String typeId) {
+    	String folder = type + "/";
+    	String name = "";
+    	try {
+    		name = resolveName(type, typeId);
+    	} catch (Exception e) {
+    		e.printStackTrace();
+    		folder += NAME_UNKNOWN + "/";
+    	}
+    	if (name != "") folder += toValidFileName(name) + "/";
+    	return folder;
     }
 
     /**
@@ -217,13 +1001,31 @@ public class BwlFileDownloader {
         System.exit(1);
     }
     
+    /**
+     * Parse the numeric value of a command line option, exit if it is not a positive number.
+     * 
+     * @param value the option value
+     * @param option the option name, used for the error message
+     * @return the parsed number
+     */
+    private static int parsePositiveInt (String value, String option) {
+    	int number = 0;
+    	try {
+    		number = Integer.parseInt(value);
+    	} catch (NumberFormatException e) {
+    		printErrorAndExit("option "+option+" requires a number, got "+value);
+    	}
+    	if (number < 1) printErrorAndExit("option "+option+" requires a positive number, got "+value);
+    	return number;
+    }
+    
     /**
      * Read a date from a given file.
      * 
      * @param filename The file that contains the 'from' date.
      * @return the 'from' date as formatted text
      */
-    private static String readDate(String filename) {
+    private static synchronized String readDate(String filename) {
     	String from = "";
     	try {
 			from = FileUtils.readFileToString(new File(filename));
@@ -238,6 +1040,16 @@ public class BwlFileDownloader {
     	return from;
     }
     
+    /**
+     * Format a date with DATE_FORMAT, which is shared by the accounts of the batch mode.
+     * 
+     * @param date the date
+     * @return the date as yyyy-MM-dd
+     */
+    private static synchronized String formatDate(Date date) {
+    	return DATE_FORMAT.format(date);
+    }
+    
     /**
      * Write a date to the given file.
      * 
@@ -245,8 +1057,8 @@ public class BwlFileDownloader {
      * @param date The date.
      * @return the date as formatted text
      */
-    private static String writeDate(String filename, Date date) {
-    	String today = DATE_FORMAT.format(date);
+    private static synchronized String writeDate(String filename, Date date) {
+    	String today = formatDate(date);
     	try {
 			FileUtils.writeStringToFile(new File(filename), today);
 			System.out.println("Until today: "+today+" -> Date information written to file "+filename);
@@ -259,15 +1071,16 @@ public class BwlFileDownloader {
     /**
      * Generic call of the API resource "ListFiles".
      */
-    private static InputStream getFileListData () throws IOException {
-        StringBuilder appListUrlBuilder = new StringBuilder(REST_API_SERVER + "/scr/api/ListFiles");
-        appListUrlBuilder.append("?account=").append(REST_API_ACCOUNT_NAME);
-        appListUrlBuilder.append("&from=").append(REST_API_FROM);
+    private InputStream getFileListData () throws IOException {
+        StringBuilder appListUrlBuilder = new StringBuilder(restApiServer + "/scr/api/ListFiles");
+        appListUrlBuilder.append("?account=").append(restApiAccountName);
+        appListUrlBuilder.append("&from=").append(restApiFrom);
 
         HttpURLConnection restApiURLConnection = getRestApiConnection(appListUrlBuilder.toString());
         if (restApiURLConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-            System.err.println("Error calling the Blueworks Live REST API: " + restApiURLConnection.getResponseMessage());
-            System.exit(1);
+            String message = restApiURLConnection.getResponseMessage();
+            BwlRestClient.discard(restApiURLConnection);
+            throw new IOException("Error calling the Blueworks Live REST API: " + message);
         }
 
         return restApiURLConnection.getInputStream();
@@ -285,29 +1098,67 @@ public class BwlFileDownloader {
     }
     
 
+    /**
+     * Get the name of the element a file is attached to. Every name is requested from the API
+     * only once and then taken from nameCache.
+     * 
+     * @param type the type of the element: process, app or instance
+     * @param typeId the ID of the element
+     * @return the name, or an empty string for other types
+     */
+    private String resolveName (String type, final String typeId) throws Exception {
+    	if (type.equalsIgnoreCase("process")) {
+    		return nameCache.get("process:"+typeId, new Callable<String>() {
+    			public String call() throws Exception {
+    				return getProcessName(typeId);
+    			}
+    		});
+    	}
+    	else if (type.equalsIgnoreCase("app")) {
+    		return nameCache.get("app:"+typeId, new Callable<String>() {
+    			public String call() throws Exception {
+    				return getAppNameByProcessId(typeId);
+    			}
+    		});
+    	}
+    	else if (type.equalsIgnoreCase("instance")) {
+    		return nameCache.get("instance:"+typeId, new Callable<String>() {
+    			public String call() throws Exception {
+    				return getInstanceName(typeId);
+    			}
+    		});
+    	}
+    	return "";
+    }
+
     /**
      * Call API to get the process name
      * 
      * @param processId the ID of the process
      * @throws JSONException 
      */
-    private static String getProcessName (String processId) throws IOException, JSONException {
-        StringBuilder appListUrlBuilder = new StringBuilder(REST_API_SERVER + "/scr/api/ProcessData");
-        appListUrlBuilder.append("?account=").append(REST_API_ACCOUNT_NAME);
+    private String getProcessName (String processId) throws IOException, JSONException {
+        StringBuilder appListUrlBuilder = new StringBuilder(restApiServer + "/scr/api/ProcessData");
+        appListUrlBuilder.append("?account=").append(restApiAccountName);
         appListUrlBuilder.append("&processId=").append(processId);
 		
         //System.out.println("APICall: " + appListUrlBuilder.toString());
         HttpURLConnection restApiURLConnection = getRestApiConnection(appListUrlBuilder.toString());
         if (restApiURLConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
         	System.err.println("ERROR:  Error calling the Blueworks Live REST API: " + restApiURLConnection.getResponseMessage());
+        	BwlRestClient.discard(restApiURLConnection);
         	return NAME_UNKNOWN;
         }
         InputStream restApiStream = restApiURLConnection.getInputStream();
-        JSONObject appListResult = new JSONObject(restApiStream);
-        JSONObject items = (JSONObject) appListResult.get("items");
-        JSONObject item = (JSONObject) items.get(processId);
-        String name = item.getString("name");
-        return name;
+        try {
+            JSONObject appListResult = new JSONObject(restApiStream);
+            JSONObject items = (JSONObject) appListResult.get("items");
+            JSONObject item = (JSONObject) items.get(processId);
+            String name = item.getString("name");
+            return name;
+        } finally {
+            BwlRestClient.close(restApiStream);
+        }
     }
 
     /**
@@ -316,9 +1167,9 @@ public class BwlFileDownloader {
      * @param appId the ID of the process application
      * @throws JSONException 
      */
-    private static String getAppName (String appId) throws IOException, JSONException {
-        StringBuilder appListUrlBuilder = new StringBuilder(REST_API_SERVER + "/scr/api/AppDetail");
-        appListUrlBuilder.append("?account=").append(REST_API_ACCOUNT_NAME);
+    private String getAppName (String appId) throws IOException, JSONException {
+        StringBuilder appListUrlBuilder = new StringBuilder(restApiServer + "/scr/api/AppDetail");
+        appListUrlBuilder.append("?account=").append(restApiAccountName);
         appListUrlBuilder.append("&version=").append("20110917");
         appListUrlBuilder.append("&appId=").append(appId);
 		
@@ -326,44 +1177,67 @@ public class BwlFileDownloader {
         HttpURLConnection restApiURLConnection = getRestApiConnection(appListUrlBuilder.toString());
         if (restApiURLConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
         	System.err.println("ERROR:  Error calling the Blueworks Live REST API: " + restApiURLConnection.getResponseMessage());
+        	BwlRestClient.discard(restApiURLConnection);
         	return NAME_UNKNOWN;
         }
         InputStream restApiStream = restApiURLConnection.getInputStream();
-        JSONObject appListResult = new JSONObject(restApiStream);
-        JSONObject app = (JSONObject) appListResult.get("app");
-        String name = app.getString("name");
-        return name;
+        try {
+            JSONObject appListResult = new JSONObject(restApiStream);
+            JSONObject app = (JSONObject) appListResult.get("app");
+            String name = app.getString("name");
+            return name;
+        } finally {
+            BwlRestClient.close(restApiStream);
+        }
     }
     
     /**
-     * Call API to get the application name
+     * Get the application name from the list of all apps.
+     * The list is requested only once and then kept in appNames.
      * 
-     * @param processId the ID of the work instance
+     * @param processId the ID of the process of the app
      * @throws JSONException 
      */
-    private static String getAppNameByProcessId (String processId) throws IOException, JSONException {
-        StringBuilder appListUrlBuilder = new StringBuilder(REST_API_SERVER + "/scr/api/AppList");
-        appListUrlBuilder.append("?account=").append(REST_API_ACCOUNT_NAME);
+    private String getAppNameByProcessId (String processId) throws IOException, JSONException {
+    	Map<String, String> apps = getAppNames();
+    	String name = apps.get(processId);
+    	return name != null ? name : NAME_UNKNOWN;
+    }
+
+    /**
+     * Call API to get the names of all apps.
+     * 
+     * @return the app names by processId, empty if the list could not be retrieved
+     * @throws JSONException 
+     */
+    private synchronized Map<String, String> getAppNames () throws IOException, JSONException {
+    	if (appNames != null) return appNames;
+        StringBuilder appListUrlBuilder = new StringBuilder(restApiServer + "/scr/api/AppList");
+        appListUrlBuilder.append("?account=").append(restApiAccountName);
         appListUrlBuilder.append("&version=").append("20110917");
 		
         //System.out.println("APICall: " + appListUrlBuilder.toString());
         HttpURLConnection restApiURLConnection = getRestApiConnection(appListUrlBuilder.toString());
         if (restApiURLConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
         	System.err.println("ERROR:  Error calling the Blueworks Live REST API: " + restApiURLConnection.getResponseMessage());
-        	return NAME_UNKNOWN;
+        	BwlRestClient.discard(restApiURLConnection);
+        	return Collections.emptyMap();
         }
         InputStream restApiStream = restApiURLConnection.getInputStream();
-        JSONObject appListResult = new JSONObject(restApiStream);
-        JSONArray apps = (JSONArray) appListResult.get("apps");
-        for (Object objFile : apps) {
-        	JSONObject app = (JSONObject)objFile; // contains: id, processId, name, type, (new)
-        	String thisId = app.getString("processId");
-        	if (processId.compareTo(thisId)==0) {
-        		String name = app.getString("name");
-        		return name;
-        	}
-        }        
-    	return NAME_UNKNOWN;
+        Map<String, String> names = new HashMap<String, String>();
+        try {
+            JSONObject appListResult = new JSONObject(restApiStream);
+            JSONArray apps = (JSONArray) appListResult.get("apps");
+            for (Object objFile : apps) {
+            	JSONObject app = (JSONObject)objFile; // contains: id, processId, name, type, (new)
+            	String thisId = app.getString("processId");
+            	if (!names.containsKey(thisId)) names.put(thisId, app.getString("name"));
+            }
+        } finally {
+            BwlRestClient.close(restApiStream);
+        }
+        appNames = names;
+    	return appNames;
     }
 
     /**
@@ -372,9 +1246,9 @@ public class BwlFileDownloader {
      * @param workId the ID of the work instance
      * @throws JSONException 
      */
-    private static String getInstanceName (String workId) throws IOException, JSONException {
-        StringBuilder appListUrlBuilder = new StringBuilder(REST_API_SERVER + "/scr/api/WorkDetail");
-        appListUrlBuilder.append("?account=").append(REST_API_ACCOUNT_NAME);
+    private String getInstanceName (String workId) throws IOException, JSONException {
+        StringBuilder appListUrlBuilder = new StringBuilder(restApiServer + "/scr/api/WorkDetail");
+        appListUrlBuilder.append("?account=").append(restApiAccountName);
         appListUrlBuilder.append("&version=").append("20110917");
         appListUrlBuilder.append("&workId=").append(workId);
 		
@@ -382,65 +1256,457 @@ public class BwlFileDownloader {
         HttpURLConnection restApiURLConnection = getRestApiConnection(appListUrlBuilder.toString());
         if (restApiURLConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
         	System.err.println("ERROR:  Error calling the Blueworks Live REST API: " + restApiURLConnection.getResponseMessage());
+        	BwlRestClient.discard(restApiURLConnection);
         	return NAME_UNKNOWN;
         }
         InputStream restApiStream = restApiURLConnection.getInputStream();
-        JSONObject appListResult = new JSONObject(restApiStream);
-        JSONObject work = (JSONObject) appListResult.get("work");
-        String name = work.getString("name");
-        return name;
+        try {
+            JSONObject appListResult = new JSONObject(restApiStream);
+            JSONObject work = (JSONObject) appListResult.get("work");
+            String name = work.getString("name");
+            return name;
+        } finally {
+            BwlRestClient.close(restApiStream);
+        }
+    }
+    
+    /**
+     * Check if a file from the list was completely downloaded by an earlier run.
+     * 
+     * @param entry the manifest entry of the file, may be null
+     * @param uploadDate the upload date from the file list
+     * @param fileSize the size from the file list, -1 if unknown
+     * @return true if the file does not need to be downloaded
+     */
+    private boolean isStored (BwlSyncManifest.Entry entry, String uploadDate, long fileSize) {
+    	if (entry == null || !entry.complete) return false;
+    	if (!entry.uploadDate.equals(uploadDate) || entry.fileSize != fileSize) return false;
+    	File archived = BwlArchive.getArchiveFile(entry.path);
+    	if (archived != null) return archived.exists();
+    	File output = new File(entry.path);
+    	return fileSize < 0 ? output.exists() : output.length() == fileSize;
+    }
+    
+    /**
+     * Link a file from the manifest again, if its output file is gone but the content
+     * is still kept as a blob.
+     * 
+     * @param entry the manifest entry of the file, may be null
+     * @param uploadDate the upload date from the file list
+     * @param fileSize the size from the file list, -1 if unknown
+     * @param log collects the messages for this file
+     * @return true if the file does not need to be downloaded
+     */
+    private boolean restoreFromBlob (BwlSyncManifest.Entry entry, String uploadDate, long fileSize, StringBuilder log) {
+    	if (entry == null || !entry.complete || entry.hash == null) return false;
+    	if (!entry.uploadDate.equals(uploadDate) || entry.fileSize != fileSize) return false;
+    	File blob = getBlobFile(entry.hash);
+    	if (fileSize < 0 ? !blob.exists() : blob.length() != fileSize) return false;
+    	try {
+    		File output = new File(entry.path);
+    		OUTPUT_INDEX.reserve(output.getParentFile(), output.getName(), false);
+    		try {
+    			linkBlob(entry.hash, output);
+    		} finally {
+    			OUTPUT_INDEX.release(output);
+    		}
+    		return true;
+    	} catch (IOException e) {
+    		log.append("WARNING: could not restore file from blob "+entry.hash+", will download it: "+e).append(NL);
+    		return false;
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		return false;
+    	}
     }
     
     /**
      * Generic call of the API resource "FileDownload".
      * 
      * @param fileId the ID of the file to download
+     * @param offset the position to continue a previous download, 0 for the complete file
+     * @param log collects the messages for this file
+     * @return the connection, response code is 200 for the complete file or 206 from the offset,
+     *         null if the file can not be downloaded
      */
-    private static InputStream getFileData (String fileId) throws IOException {
-        StringBuilder appListUrlBuilder = new StringBuilder(REST_API_SERVER + "/scr/api/FileDownload");
-        appListUrlBuilder.append("?account=").append(REST_API_ACCOUNT_NAME);
+    private HttpURLConnection getFileData (String fileId, long offset, StringBuilder log) throws IOException {
+        return getFileData(fileId, offset, -1, log);
+    }
+    
+    /**
+     * Generic call of the API resource "FileDownload" for a part of a file.
+     * 
+     * @param fileId the ID of the file to download
+     * @param offset the position of the first byte
+     * @param last the position of the last byte, -1 for the end of the file
+     * @param log collects the messages for this file
+     * @return the connection, response code is 200 for the complete file or 206 for the part,
+     *         null if the file can not be downloaded
+     */
+    private HttpURLConnection getFileData (String fileId, long offset, long last, StringBuilder log) throws IOException {
+        StringBuilder appListUrlBuilder = new StringBuilder(restApiServer + "/scr/api/FileDownload");
+        appListUrlBuilder.append("?account=").append(restApiAccountName);
         appListUrlBuilder.append("&fileItemId=").append(fileId);
 		
         //System.out.println("APICall: " + appListUrlBuilder.toString());
-        HttpURLConnection restApiURLConnection = getRestApiConnection(appListUrlBuilder.toString());
-        if (restApiURLConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-        	System.err.println("ERROR:  Error calling the Blueworks Live REST API: " + restApiURLConnection.getResponseMessage());
+        Map<String, String> headers = null;
+        if (offset > 0 || last >= 0) headers = Collections.singletonMap("Range", "bytes=" + offset + "-" + (last >= 0 ? String.valueOf(last) : ""));
+        HttpURLConnection restApiURLConnection = getRestApiConnection(appListUrlBuilder.toString(), headers, log);
+        int responseCode = restApiURLConnection.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_PARTIAL) {
+        	log.append("ERROR:  Error calling the Blueworks Live REST API: " + restApiURLConnection.getResponseMessage()).append(NL);
+        	BwlRestClient.discard(restApiURLConnection);
         	return null;
         }
-        return restApiURLConnection.getInputStream();
+        return restApiURLConnection;
     }
     
     /**
-     * Store binary data in a file
+     * Download a file. The data is written to the temporary file "fileId.part", which is renamed to
+     * the output file when it is complete. An incomplete download, also from an earlier run, is
+     * continued with a range request if the server supports it, otherwise it starts again.
+     * With deduplicate the complete file becomes a blob instead, and the output file is a link
+     * to it, see storeBlob and linkBlob.
      * 
-     * @param inputStream an input stream with data to write
+     * @param fileId the ID of the file to download
      * @param pathName directory to store the file, will be created, if it does not exist
      * @param fileName name of the output file
+     * @param fileSize the expected size from the file list, -1 if unknown
+     * @param log collects the messages for this file
+     * @return the output file and its hash, null if the download failed
+     */
+    private Download downloadFile (String fileId, String pathName, String fileName, long fileSize, StringBuilder log) {
+    	File output = null;
+    	try {
+    		output = reserveOutputFile(pathName, fileName, log);
+    		File part = new File(pathName, fileId + PART_SUFFIX);
+    		MessageDigest digest = null;  // hash of the part file, if it was written in one piece
+    		AtomicLong transferred = new AtomicLong(0);
+    		if (segmentMegabytes > 0 && fileSize > segmentMegabytes * 1048576L && !part.exists()) {
+    			if (!downloadSegments(fileId, part, fileSize, transferred, log)) {
+    				log.append("INFO: Range requests not supported, download file id="+fileId+" over one connection").append(NL);
+    			}
+    		}
+    		for (int attempt = 1; attempt <= DOWNLOAD_ATTEMPTS; attempt++) {
+    			long offset = part.exists() ? part.length() : 0;
+    			if (fileSize >= 0 && offset > fileSize) {
+    				log.append("WARNING: "+part+" is larger than the file - will download it again").append(NL);
+    				FileUtils.forceDelete(part);
+    				offset = 0;
+    			}
+    			if (fileSize < 0 || offset < fileSize || offset == 0) {
+    				HttpURLConnection connection = getFileData(fileId, offset, log);
+    				if (connection == null) {
+    					if (offset == 0) return null;
+    					FileUtils.forceDelete(part);  // the range may not be valid any more
+    					continue;
+    				}
+    				boolean append = offset > 0 && connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL;
+    				if (append) log.append("INFO: Resume download of file id="+fileId+" at byte "+offset).append(NL);
+    				else if (offset > 0) log.append("INFO: Resume not supported, download complete file id="+fileId).append(NL);
+    				digest = deduplicate && !append ? MessageDigest.getInstance(HASH_ALGORITHM) : null;
+    				boolean written = writeFileData(connection.getInputStream(), part, append, digest);
+    				transferred.addAndGet(part.length() - (append ? offset : 0));
+    				if (fileSize < 0 && !written) continue;
+    			}
+    			if (fileSize < 0 || part.length() == fileSize) {
+    				if (!deduplicate) {
+    					moveFile(part, output);
+    					return new Download(output.getPath(), null, transferred.get());
+    				}
+    				String hash = digest != null ? toHex(digest.digest()) : BwlVerifier.hashFile(part, HASH_ALGORITHM);
+    				storeBlob(part, hash, log);
+    				linkBlob(hash, output);
+    				return new Download(output.getPath(), hash, transferred.get());
+    			}
+    			log.append("WARNING: download of file id="+fileId+" incomplete, "+part.length()+" of "+fileSize+" bytes, attempt "+attempt).append(NL);
+    		}
+    	} catch (Exception e) {
+    		log.append("ERROR: "+e).append(NL);
+    	} finally {
+    		if (output != null) releaseOutputFile(output);
+    	}
+    	return null;
+    }
+    
+    /**
+     * Download a large file in segments over several connections at the same time. The segments
+     * are downloaded by this thread and by up to SEGMENT_CONNECTIONS - 1 free download threads of
+     * the scheduler, so the connections stay within the -p limit and the rate limit. Every segment
+     * is requested with a range request and written at its position in the file "fileId.seg",
+     * which has the size of the complete file from the start. Finished segments are noted in
+     * "fileId.seg.done", so an interrupted download continues with the missing segments.
+     * When all segments are there, the file becomes the part file.
+     * 
+     * @param fileId the ID of the file to download
+     * @param part the part file of the download
+     * @param fileSize the size from the file list
+     * @param transferred counts the bytes received
+     * @param log collects the messages for this file
+     * @return true if the part file is complete, false if the server does not support range requests
      */
-    private static boolean writeFileData (InputStream inputStream, String pathName, String fileName) {
+    private boolean downloadSegments (final String fileId, File part, final long fileSize, final AtomicLong transferred, final StringBuilder log) throws IOException, InterruptedException {
+    	final long segmentSize = segmentMegabytes * 1048576L;
+    	final int segments = (int) ((fileSize + segmentSize - 1) / segmentSize);
+    	File segmented = new File(part.getParentFile(), fileId + SEGMENT_SUFFIX);
+    	final File done = new File(part.getParentFile(), fileId + SEGMENT_DONE_SUFFIX);
+    	final Set<Integer> finished = Collections.synchronizedSet(new HashSet<Integer>());
+    	if (segmented.length() == fileSize && done.exists()) {
+    		for (String line : FileUtils.readLines(done, "UTF-8")) {
+    			if (line.trim().length() > 0) finished.add(Integer.valueOf(line.trim()));
+    		}
+    		log.append("INFO: Resume segmented download of file id="+fileId+", "+finished.size()+" of "+segments+" segments done").append(NL);
+    	}
+    	else {
+    		FileUtils.deleteQuietly(done);
+    	}
+    	
+    	// the first missing segment shows if the server supports range requests
+    	final AtomicInteger next = new AtomicInteger(0);
+    	while (finished.contains(next.get())) next.incrementAndGet();
+    	if (next.get() < segments) {
+    		long first = next.get() * segmentSize;
+    		HttpURLConnection probe = getFileData(fileId, first, first, log);
+    		if (probe == null) throw new IOException("could not download file id="+fileId);
+    		if (probe.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+    			probe.disconnect();
+    			return false;
+    		}
+    		BwlRestClient.close(probe.getInputStream());
+    	}
+    	
+    	final RandomAccessFile file = new RandomAccessFile(segmented, "rw");
+    	try {
+    		file.setLength(fileSize);
+    		final FileChannel channel = file.getChannel();
+    		final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+    		final Runnable downloader = new Runnable() {
+    			public void run() {
+    				int segment;
+    				while (errors.isEmpty() && (segment = next.getAndIncrement()) < segments) {
+    					if (finished.contains(segment)) continue;
+    					// the threads of the segments collect their messages separately
+    					StringBuilder messages = new StringBuilder();
+    					try {
+    						long from = segment * segmentSize;
+    						writeSegment(fileId, channel, from, Math.min(fileSize, from + segmentSize) - 1, transferred, messages);
+    						synchronized (finished) {
+    							finished.add(segment);
+    							FileUtils.writeStringToFile(done, segment + NL, "UTF-8", true);
+    						}
+    					} catch (Exception e) {
+    						errors.add(e);
+    					} finally {
+    						synchronized (log) {
+    							log.append(messages);
+    						}
+    					}
+    				}
+    			}
+    		};
+    		// the other segments are offered to the download threads, a helper that starts before
+    		// the last segment is taken downloads segments as well, so the segments never need more
+    		// connections than -p allows, and a thread waits only for helpers that are running
+    		final Object helpers = new Object();
+    		final AtomicInteger running = new AtomicInteger(0);
+    		final AtomicBoolean closed = new AtomicBoolean(false);
+    		for (int i = 1; i < Math.min(SEGMENT_CONNECTIONS, segments); i++) {
+    			scheduler.submit(helpers, new Runnable() {
+    				public void run() {
+    					synchronized (helpers) {
+    						if (closed.get()) return;
+    						running.incrementAndGet();
+    					}
+    					try {
+    						downloader.run();
+    					} finally {
+    						synchronized (helpers) {
+    							running.decrementAndGet();
+    							helpers.notifyAll();
+    						}
+    					}
+    				}
+    			});
+    		}
+    		downloader.run();
+    		next.set(segments);
+    		scheduler.cancel(helpers);
+    		synchronized (helpers) {
+    			closed.set(true);
+    			while (running.get() > 0) helpers.wait();
+    		}
+    		if (!errors.isEmpty()) {
+    			throw new IOException("segmented download of file id="+fileId+" failed, "+finished.size()+" of "+segments+" segments done", errors.get(0));
+    		}
+    	} finally {
+    		file.close();
+    	}
+    	moveFile(segmented, part);
+    	FileUtils.deleteQuietly(done);
+    	log.append("INFO: Downloaded file id="+fileId+" in "+segments+" segments").append(NL);
+    	return true;
+    }
+    
+    /**
+     * Download one segment of a file and write it at its position. A broken connection
+     * continues at the same position.
+     * 
+     * @param fileId the ID of the file to download
+     * @param channel the file to write to
+     * @param from the position of the first byte of the segment
+     * @param last the position of the last byte of the segment
+     * @param transferred counts the bytes received
+     * @param log collects the messages for this segment
+     */
+    private void writeSegment (String fileId, FileChannel channel, long from, long last, AtomicLong transferred, StringBuilder log) throws IOException {
+    	long position = from;
+    	for (int attempt = 1; position <= last; attempt++) {
+    		HttpURLConnection connection = getFileData(fileId, position, last, log);
+    		if (connection == null || connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+    			if (connection != null) connection.disconnect();
+    			throw new IOException("could not download bytes "+position+"-"+last+" of file id="+fileId);
+    		}
+    		InputStream inputStream = connection.getInputStream();
+    		long start = System.currentTimeMillis();
+    		long count = 0;
+    		try {
+    			byte[] bytes = BUFFERS.get();
+    			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    			int read;
+    			while (position <= last && (read = inputStream.read(bytes, 0, (int) Math.min(bytes.length, last - position + 1))) != -1) {
+    				buffer.clear();
+    				buffer.limit(read);
+    				while (buffer.hasRemaining()) position += channel.write(buffer, position);
+    				count += read;
+    			}
+    		} catch (IOException e) {
+    			if (attempt >= DOWNLOAD_ATTEMPTS) throw e;
+    		} finally {
+    			BwlRestClient.close(inputStream);
+    			METRICS.record("transfer", System.currentTimeMillis() - start, count, position <= last);
+    			transferred.addAndGet(count);
+    		}
+    		if (position <= last && attempt >= DOWNLOAD_ATTEMPTS) {
+    			throw new IOException("download of bytes "+from+"-"+last+" of file id="+fileId+" incomplete at byte "+position);
+    		}
+    	}
+    }
+    
+    /**
+     * Download a file into the archive. The data is streamed from the connection into the entry,
+     * every download thread writes its own archive, so the downloads do not wait for each other.
+     * 
+     * @param fileId the ID of the file to download
+     * @param entryName the path of the file in the archive
+     * @param fileSize the expected size from the file list, -1 if unknown
+     * @param log collects the messages for this file
+     * @return the archive and entry name, null if the download failed
+     */
+    private Download archiveFile (final String fileId, String entryName, final long fileSize, final StringBuilder log) {
+    	try {
+    		long start = System.currentTimeMillis();
+    		final AtomicLong transferred = new AtomicLong(0);
+    		String path = archive.add(entryName, new BwlArchive.Content() {
+    			public void writeTo(OutputStream out) throws IOException {
+    				streamFileData(fileId, fileSize, out, transferred, log);
+    			}
+    		});
+    		METRICS.record("archive", System.currentTimeMillis() - start, Math.max(0, fileSize), false);
+    		log.append("INFO: Added file id="+fileId+" to archive as "+path).append(NL);
+    		return new Download(path, null, transferred.get());
+    	} catch (Exception e) {
+    		log.append("ERROR: "+e.getMessage()).append(NL);
+    	}
+    	return null;
+    }
+    
+    /**
+     * Download a file to a stream. If the connection breaks, the download is continued
+     * at the same position, with a range request if the server supports it.
+     * 
+     * @param fileId the ID of the file to download
+     * @param fileSize the expected size from the file list, -1 if unknown
+     * @param out the stream to write to, is not closed
+     * @param transferred counts the bytes received, also the bytes skipped after a broken connection
+     * @param log collects the messages for this file
+     */
+    private void streamFileData (String fileId, long fileSize, OutputStream out, AtomicLong transferred, StringBuilder log) throws IOException {
+    	long written = 0;
+    	for (int attempt = 1; ; attempt++) {
+    		HttpURLConnection connection = getFileData(fileId, written, log);
+    		if (connection == null) throw new IOException("could not download file id="+fileId);
+    		long skip = 0;
+    		if (written > 0 && connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+    			log.append("INFO: Resume download of file id="+fileId+" at byte "+written).append(NL);
+    		}
+    		else if (written > 0) {
+    			log.append("INFO: Resume not supported, download complete file id="+fileId+" and skip "+written+" bytes").append(NL);
+    			skip = written;
+    		}
+    		InputStream inputStream = connection.getInputStream();
+    		long start = System.currentTimeMillis();
+    		long count = 0;
+    		boolean broken = false;
+    		try {
+    			IOUtils.skipFully(inputStream, skip);
+    			byte[] bytes = BUFFERS.get();
+    			int read;
+    			while ((read = inputStream.read(bytes)) != -1) {
+    				out.write(bytes, 0, read);
+    				count += read;
+    			}
+    		} catch (IOException e) {
+    			if (attempt >= DOWNLOAD_ATTEMPTS) throw e;
+    			broken = true;
+    		} finally {
+    			BwlRestClient.close(inputStream);
+    			METRICS.record("transfer", System.currentTimeMillis() - start, count, broken);
+    			written += count;
+    			transferred.addAndGet(count + skip);
+    		}
+    		if (!broken && (fileSize < 0 || written == fileSize)) return;
+    		if (fileSize >= 0 && written > fileSize) throw new IOException("file id="+fileId+" is larger than "+fileSize+" bytes");
+    		if (attempt >= DOWNLOAD_ATTEMPTS) throw new IOException("download of file id="+fileId+" incomplete, "+written+" of "+fileSize+" bytes");
+    		log.append("WARNING: download of file id="+fileId+" incomplete, "+written+" of "+fileSize+" bytes, attempt "+attempt).append(NL);
+    	}
+    }
+    
+    /**
+     * Store binary data in a file.
+     * The data is collected in a large buffer of the current thread and written with
+     * one channel write per buffer, instead of one write call per network read.
+     * 
+     * @param inputStream an input stream with data to write
+     * @param output the file to write
+     * @param append true to add the data at the end of the file
+     * @param digest is updated with the data, may be null
+     * @return true if all data was read from the input stream
+     */
+    static boolean writeFileData (InputStream inputStream, File output, boolean append, MessageDigest digest) {
     	boolean ret = true;
-    	OutputStream outputStream = null;
+    	FileChannel channel = null;
+    	long start = System.currentTimeMillis();
+    	long diskNanos = 0;
+    	long written = 0;
     	try {
-    		File output = new File(pathName, fileName);
-        	FileUtils.forceMkdir(new File(pathName));
-        	if (RENAME_FILE && output.exists()) {
-        		int i = 2;
-        		boolean exists = true;
-        		String base = FilenameUtils.getBaseName(fileName);
-        		String ext = FilenameUtils.getExtension(fileName);
-        		while (exists) {
-        			fileName = base + "_" + i + "." + ext;
-        			output = new File(pathName, fileName);
-        			if (!output.exists()) exists = false;
-        			else i++;
-        		}
-        		System.out.println("INFO: File with same name exists -> rename to "+fileName);
-        	}
-    		outputStream = new FileOutputStream(output);
+    		channel = new FileOutputStream(output, append).getChannel();
+    		byte[] bytes = BUFFERS.get();
+    		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    		int filled = 0;
     		int read = 0;
-    		byte[] bytes = new byte[1024];
-    		while ((read = inputStream.read(bytes)) != -1) {
-    			outputStream.write(bytes, 0, read);
+    		while (read != -1) {
+    			read = inputStream.read(bytes, filled, bytes.length - filled);
+    			if (read > 0) filled += read;
+    			if (filled == bytes.length || (read == -1 && filled > 0)) {
+    				buffer.clear();
+    				buffer.limit(filled);
+    				long diskStart = System.nanoTime();
+    				while (buffer.hasRemaining()) channel.write(buffer);
+    				diskNanos += System.nanoTime() - diskStart;
+    				if (digest != null) digest.update(bytes, 0, filled);
+    				written += filled;
+    				filled = 0;
+    			}
     		}
             	
         } catch (Exception e) {
@@ -452,43 +1718,150 @@ public class BwlFileDownloader {
         			e.printStackTrace();
         		}
         	}
-        	if (outputStream != null) {
-        		try { outputStream.flush(); outputStream.close(); } catch (IOException e) {
+        	if (channel != null) {
+        		try { channel.close(); } catch (IOException e) {
         			e.printStackTrace();
         		}
         	}
+        	METRICS.record("transfer", System.currentTimeMillis() - start, written, !ret);
+        	METRICS.record("disk", diskNanos / 1000000, written, false);
         }
     	return ret;
     }
     
+    /**
+     * Keep a downloaded file as a blob named by its hash in the directory BLOB_DIRECTORY.
+     * If a blob with the same content exists already, the downloaded file is dropped.
+     * 
+     * @param part the downloaded file
+     * @param hash the hash of the file
+     * @param log collects the messages for this file
+     */
+    private void storeBlob (File part, String hash, StringBuilder log) throws IOException {
+    	File blob = getBlobFile(hash);
+    	if (blob.exists()) {
+    		log.append("INFO: Same content was downloaded before, will link to "+blob).append(NL);
+    		FileUtils.forceDelete(part);
+    	}
+    	else {
+    		OUTPUT_INDEX.makeDirectory(blob.getParentFile());
+    		moveFile(part, blob);
+    	}
+    }
+    
+    /**
+     * Make the output file a hard link to a blob. If the file system does not support
+     * hard links, the blob is copied.
+     * 
+     * @param hash the hash of the blob
+     * @param output the output file
+     */
+    private void linkBlob (String hash, File output) throws IOException {
+    	File blob = getBlobFile(hash);
+    	Files.deleteIfExists(output.toPath());
+    	try {
+    		Files.createLink(output.toPath(), blob.toPath());
+    	} catch (UnsupportedOperationException e) {
+    		Files.copy(blob.toPath(), output.toPath());
+    	} catch (FileSystemException e) {
+    		Files.copy(blob.toPath(), output.toPath());
+    	}
+    }
     
     /**
-     * Set up the connection to a REST API including handling the Basic Authentication request headers that must be
-     * present on every API call.
+     * @param hash the hash of a file
+     * @return the blob file for that content
+     */
+    private File getBlobFile (String hash) {
+    	return new File(new File(FilenameUtils.concat(pathOutput, BLOB_DIRECTORY), hash.substring(0, 2)), hash);
+    }
+    
+    static String toHex (byte[] bytes) {
+    	StringBuilder hex = new StringBuilder(bytes.length * 2);
+    	for (byte b : bytes) hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    	return hex.toString();
+    }
+    
+    /**
+     * Replace the target with the source file, atomically if the file system supports it.
+     * 
+     * @param source the file to move
+     * @param target the new file
+     */
+    private static void moveFile (File source, File target) throws IOException {
+    	try {
+    		Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    	} catch (AtomicMoveNotSupportedException e) {
+    		Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    	}
+    }
+    
+    /**
+     * Determine the output file and create the directory if necessary.
+     * A file that is being downloaded is reserved until releaseOutputFile is called.
+     * With renameFile reserved names are skipped like existing files, otherwise
+     * this waits until the download to the same file is finished.
+     * The names are taken from OUTPUT_INDEX, the directory is listed only once per run.
+     * 
+     * @param pathName directory to store the file, will be created, if it does not exist
+     * @param fileName name of the output file
+     * @param log collects the messages for this file
+     * @return the file to write to
+     */
+    private File reserveOutputFile (String pathName, String fileName, StringBuilder log) throws IOException, InterruptedException {
+    	File output = OUTPUT_INDEX.reserve(new File(pathName), fileName, renameFile);
+    	if (!output.getName().equals(fileName)) {
+    		log.append("INFO: File with same name exists -> rename to "+output.getName()).append(NL);
+    	}
+    	return output;
+    }
+    
+    /**
+     * Release a file reserved by reserveOutputFile.
+     * 
+     * @param output the reserved file
+     */
+    private static void releaseOutputFile (File output) {
+    	OUTPUT_INDEX.release(output);
+    }
+    
+    
+    /**
+     * Call a REST API including handling the Basic Authentication request headers that must be
+     * present on every API call. All calls share the connections and the rate limit of restClient,
+     * an overloaded server or a failed connection is retried.
      * 
      * @param apiCall The URL string indicating the api call and parameters.
-     * @return the open connection
+     * @return the connection with the response
      */
-    public static HttpURLConnection getRestApiConnection(String apiCall) throws IOException {
-
-        // Call the provided api on the Blueworks Live server
-        URL restApiUrl = new URL(apiCall);
-        HttpURLConnection restApiURLConnection = (HttpURLConnection) restApiUrl.openConnection();
-
-        // Add the HTTP Basic authentication header which should be present on every API call.
-        addAuthenticationHeader(restApiURLConnection);
-
-        return restApiURLConnection;
+    public HttpURLConnection getRestApiConnection(String apiCall) throws IOException {
+        return getRestApiConnection(apiCall, null, null);
     }
 
     /**
-     * Add the HTTP Basic authentication header which should be present on every API call.
+     * Call a REST API with additional request headers.
      * 
-     * @param restApiURLConnection The open connection to the REST API.
+     * @param apiCall The URL string indicating the api call and parameters.
+     * @param headers additional request headers, may be null
+     * @param log collects the messages for the file of the call, null to print them
+     * @return the connection with the response
      */
-    private static void addAuthenticationHeader(HttpURLConnection restApiURLConnection) {
-        String userPwd = REST_API_USERNAME + ":" + REST_API_PASSWORD;
-        String encoded = DatatypeConverter.printBase64Binary(userPwd.getBytes());
-        restApiURLConnection.setRequestProperty("Authorization", "Basic " + encoded);
+    public HttpURLConnection getRestApiConnection(String apiCall, Map<String, String> headers, StringBuilder log) throws IOException {
+        return restClient.execute(apiCall, headers, log);
+    }
+
+    /**
+     * The result of a successful download.
+     */
+    private static class Download {
+    	final String path;  // the output file, or the archive and entry name
+    	final String hash;  // content hash, only with deduplicate
+    	final long bytes;   // received from the server, less than the file if a download was continued
+    	
+    	Download (String path, String hash, long bytes) {
+    		this.path = path;
+    		this.hash = hash;
+    		this.bytes = bytes;
+    	}
     }
 }
@@ -0,0 +1,257 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+
+/**
+ * BwlFileListParser
+ *
+ * Reads the result of the API resource "ListFiles" one file at a time.
+ * Only the entry that is returned by next() is held in memory, so the first file
+ * can be downloaded while the rest of the list is still being received.
+ *
+ * Expected input: {"files":[{...},{...},...], ...}
+ * Other top level members are skipped.
+ */
+public class BwlFileListParser {
+
+    private final Reader reader;
+    private final char[] buffer = new char[64 * 1024];
+    private int position = 0;
+    private int limit = 0;
+    private boolean inFiles = false;
+    private boolean done = false;
+    private final StringBuilder text = new StringBuilder(256);  // reused for strings and values
+
+    /**
+     * @param inputStream the stream returned by the API call, UTF-8 encoded
+     */
+    public BwlFileListParser(InputStream inputStream) throws IOException {
+        this.reader = new InputStreamReader(inputStream, "UTF-8");
+    }
+
+    /**
+     * Get the next entry of the "files" array.
+     *
+     * @return the next file entry, or null if there are no more files
+     */
+    public JSONObject next() throws IOException, JSONException {
+        if (done) return null;
+        if (!inFiles) {
+            if (!findFiles()) {
+                done = true;
+                return null;
+            }
+            inFiles = true;
+        }
+        int c = readToken();
+        if (c == ',') c = readToken();
+        if (c == ']') {
+            done = true;
+            return null;
+        }
+        if (c != '{') throw new JSONException("unexpected character '" + (char) c + "' in files array");
+        return readObject();
+    }
+
+    /**
+     * Move the reader to the first element of the top level "files" array.
+     *
+     * @return false if the result does not contain a "files" array
+     */
+    private boolean findFiles() throws IOException, JSONException {
+        if (readToken() != '{') throw new JSONException("result of ListFiles is not a JSON object");
+        while (true) {
+            int c = readToken();
+            if (c == ',') c = readToken();
+            if (c == '}' || c == -1) return false;
+            if (c != '"') throw new JSONException("unexpected character '" + (char) c + "' in ListFiles result");
+            String key = readString();
+            if (readToken() != ':') throw new JSONException("missing ':' after " + key);
+            c = readToken();
+            if (key.equals("files") && c == '[') return true;
+            skipValue(c);
+        }
+    }
+
+    /**
+     * Read the members of a file entry, the opening brace is read already. The entry is built
+     * directly, the entries of the list contain strings and integers only. Other values, e.g.
+     * nested objects, are parsed by JSON4J, so they get the same types as in a complete tree.
+     */
+    private JSONObject readObject() throws IOException, JSONException {
+        JSONObject object = new JSONObject();
+        int c = readToken();
+        if (c == '}') return object;
+        while (true) {
+            if (c != '"') throw new JSONException("unexpected character '" + (char) c + "' in file entry");
+            String key = readString();
+            if (readToken() != ':') throw new JSONException("missing ':' after " + key);
+            c = readToken();
+            if (c == '"') object.put(key, readString());
+            else object.put(key, readValue(c));
+            c = readToken();
+            if (c == '}') return object;
+            if (c != ',') throw new JSONException("unexpected character '" + (char) c + "' in file entry");
+            c = readToken();
+        }
+    }
+
+    /**
+     * Read a value that is not a string.
+     *
+     * @param first the first character of the value
+     */
+    private Object readValue(int first) throws IOException, JSONException {
+        text.setLength(0);
+        copyValue(first);
+        int length = text.length();
+        int digits = length > 0 && text.charAt(0) == '-' ? 1 : 0;
+        boolean integer = length > digits && length - digits <= 18
+                && (text.charAt(digits) != '0' || length - digits == 1);  // a leading 0 is octal in JSON4J
+        for (int i = digits; integer && i < length; i++) integer = text.charAt(i) >= '0' && text.charAt(i) <= '9';
+        if (integer) {
+            long value = Long.parseLong(text.toString());
+            if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) return Integer.valueOf((int) value);
+            return Long.valueOf(value);
+        }
+        String literal = text.toString();
+        if (literal.equals("true")) return Boolean.TRUE;
+        if (literal.equals("false")) return Boolean.FALSE;
+        if (literal.equals("null")) return null;
+        return new JSONObject("{\"v\":" + literal + "}").get("v");
+    }
+
+    /**
+     * Skip a complete JSON value that starts with the given character.
+     */
+    private void skipValue(int first) throws IOException, JSONException {
+        text.setLength(0);
+        copyValue(first);
+    }
+
+    /**
+     * Append the text of a complete JSON value that starts with the given character to text.
+     */
+    private void copyValue(int first) throws IOException, JSONException {
+        if (first == '"') {
+            copyString();
+            return;
+        }
+        if (first != '{' && first != '[') {
+            // number, true, false or null
+            int c = first;
+            while (c != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+                text.append((char) c);
+                c = read();
+            }
+            if (c != -1) position--;
+            return;
+        }
+        int depth = 0;
+        int c = first;
+        while (true) {
+            if (c == -1) throw new JSONException("unexpected end of ListFiles result");
+            if (c == '"') {
+                copyString();
+            } else {
+                text.append((char) c);
+                if (c == '{' || c == '[') depth++;
+                else if (c == '}' || c == ']') {
+                    if (--depth == 0) return;
+                }
+            }
+            c = read();
+        }
+    }
+
+    /**
+     * Append a string including its quotes to text, the opening quote is read already.
+     */
+    private void copyString() throws IOException, JSONException {
+        text.append('"');
+        boolean escaped = false;
+        while (true) {
+            int c = read();
+            if (c == -1) throw new JSONException("unterminated string in ListFiles result");
+            text.append((char) c);
+            if (escaped) escaped = false;
+            else if (c == '\\') escaped = true;
+            else if (c == '"') return;
+        }
+    }
+
+    /**
+     * Read a string and decode its escapes, the opening quote is read already.
+     *
+     * @return the value of the string
+     */
+    private String readString() throws IOException, JSONException {
+        // most strings have no escapes and are taken from the buffer at once
+        for (int i = position; i < limit; i++) {
+            char c = buffer[i];
+            if (c == '"') {
+                String value = new String(buffer, position, i - position);
+                position = i + 1;
+                return value;
+            }
+            if (c == '\\') break;
+        }
+        text.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == -1) throw new JSONException("unterminated string in ListFiles result");
+            if (c == '"') return text.toString();
+            if (c != '\\') {
+                text.append((char) c);
+                continue;
+            }
+            c = read();
+            switch (c) {
+                case '"': case '\\': case '/': text.append((char) c); break;
+                case 'b': text.append('\b'); break;
+                case 'f': text.append('\f'); break;
+                case 'n': text.append('\n'); break;
+                case 'r': text.append('\r'); break;
+                case 't': text.append('\t'); break;
+                case 'u':
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(read(), 16);
+                        if (digit < 0) throw new JSONException("invalid unicode escape in ListFiles result");
+                        code = code * 16 + digit;
+                    }
+                    text.append((char) code);
+                    break;
+                default:
+                    throw new JSONException("invalid escape in ListFiles result");
+            }
+        }
+    }
+
+    /**
+     * @return the next character that is not white space, -1 at the end of the input
+     */
+    private int readToken() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c != -1 && Character.isWhitespace(c));
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = reader.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+}
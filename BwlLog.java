@@ -0,0 +1,282 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+
+/**
+ * BwlLog
+ *
+ * Writes the messages of the processed files in a background thread, so that the download
+ * threads do not wait for the console. Every file gives one record, which is formatted only
+ * by the background thread: as text lines on the console, filtered by the verbosity, and
+ * optionally as one JSON object per line in a log file.
+ * The records wait in a bounded queue. If the queue is full, records of successful files are
+ * not shown on the console, only counted, and wait in an unbounded queue for their JSON line.
+ * Records with warnings or errors wait for free space. The JSON file gets every record.
+ */
+public class BwlLog {
+
+    // verbosity levels, every level includes the ones before
+    public final static int ERROR = 0;
+    public final static int WARNING = 1;
+    public final static int INFO = 2;
+    public final static int FILEINFO = 3;  // the complete entry of the file list
+
+    private final static int QUEUE_SIZE = 10000;
+    private final static String TIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
+    private final static String NL = System.getProperty("line.separator");
+
+    private final int verbosity;
+    private final File jsonFile;
+    private final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(QUEUE_SIZE);
+    private final Queue<Record> overflow = new ConcurrentLinkedQueue<Record>();  // not shown on the console, only written to the JSON file
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong added = new AtomicLong();
+    private long written = 0;
+    private final Object jsonLock = new Object();
+    private Writer json = null;
+    private Thread writer = null;
+
+    /**
+     * The messages and the result of one file.
+     */
+    public static class Record {
+        final long time = System.currentTimeMillis();  // the start of the processing
+        final String account;
+        final JSONObject file;
+        final CharSequence messages;  // lines starting with ERROR:, WARNING: or INFO:
+        String status = "";  // downloaded, skipped, listed or failed
+        String path = null;
+        long bytes = 0;
+        long millis = 0;
+
+        /**
+         * Create the record when the processing of the file starts.
+         *
+         * @param account the account of the file
+         * @param file the entry of the file list
+         * @param messages the messages for the file, must not be changed after the record is added
+         */
+        public Record(String account, JSONObject file, CharSequence messages) {
+            this.account = account;
+            this.file = file;
+            this.messages = messages;
+        }
+
+        /**
+         * @param status downloaded, skipped, listed or failed
+         * @param path the output file, may be null
+         * @param bytes the bytes received from the server
+         */
+        public void setResult(String status, String path, long bytes) {
+            this.status = status;
+            this.path = path;
+            this.bytes = bytes;
+        }
+
+        int getLevel() {
+            if (status.equals("failed")) return ERROR;
+            String text = messages.toString();
+            if (text.contains("ERROR:")) return ERROR;
+            if (text.contains("WARNING:")) return WARNING;
+            return INFO;
+        }
+    }
+
+    /**
+     * @param verbosity the level of the messages on the console
+     * @param jsonFile the file to append JSON records to, null for none
+     */
+    public BwlLog(int verbosity, File jsonFile) {
+        this.verbosity = verbosity;
+        this.jsonFile = jsonFile;
+    }
+
+    /**
+     * Add the record of a file. Does not wait for the console, unless the queue is full and
+     * the record has a warning or error.
+     *
+     * @param record the record
+     */
+    public void add(Record record) {
+        record.millis = System.currentTimeMillis() - record.time;
+        start();
+        if (record.getLevel() >= INFO) {
+            if (!queue.offer(record)) {
+                dropped.incrementAndGet();
+                // only the console is lossy, the JSON file is an audit of all files
+                if (jsonFile == null) return;
+                overflow.add(record);
+            }
+        }
+        else {
+            try {
+                queue.put(record);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        added.incrementAndGet();
+    }
+
+    /**
+     * Wait until all records added so far are written, e.g. before a summary is printed.
+     */
+    public synchronized void flush() {
+        while (written < added.get() && writer != null && writer.isAlive()) {
+            try {
+                wait(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) System.out.println("WARNING: "+lost+" messages of successful files were not shown, the console was too slow");
+    }
+
+    /**
+     * Write the remaining records and close the JSON file.
+     */
+    public void close() {
+        flush();
+        synchronized (jsonLock) {
+            if (json == null) return;
+            try {
+                json.close();
+            } catch (IOException e) {
+                System.err.println("WARNING: Could not write log file "+jsonFile+": "+e.getMessage());
+            }
+            json = null;
+        }
+    }
+
+    private synchronized void start() {
+        if (writer != null) return;
+        writer = new Thread("log") {
+            public void run() {
+                write();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void write() {
+        List<Record> records = new ArrayList<Record>();
+        StringBuilder text = new StringBuilder();
+        StringBuilder lines = new StringBuilder();
+        SimpleDateFormat timeFormat = new SimpleDateFormat(TIME_FORMAT);
+        while (true) {
+            try {
+                // a record may be added to the overflow while the queue is empty again, so do not wait long
+                Record record = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (record != null) records.add(record);
+            } catch (InterruptedException e) {
+                return;
+            }
+            // everything that is waiting is written at once
+            queue.drainTo(records);
+            int count = records.size();
+            for (Record record : records) {
+                format(record, text);
+                if (jsonFile != null) lines.append(toJson(record, timeFormat)).append('\n');
+            }
+            Record record;
+            while ((record = overflow.poll()) != null) {
+                lines.append(toJson(record, timeFormat)).append('\n');
+                count++;
+            }
+            if (count == 0) continue;
+            if (text.length() > 0) System.out.print(text);
+            if (lines.length() > 0) writeJson(lines);
+            text.setLength(0);
+            lines.setLength(0);
+            synchronized (this) {
+                written += count;
+                notifyAll();
+            }
+            records.clear();
+        }
+    }
+
+    /**
+     * Append the console text of a record: the messages up to the verbosity.
+     */
+    private void format(Record record, StringBuilder text) {
+        String messages = record.messages.toString();
+        int start = 0;
+        while (start < messages.length()) {
+            int end = messages.indexOf('\n', start);
+            end = end < 0 ? messages.length() : end + 1;
+            if (getLevel(messages, start) <= verbosity) text.append(messages, start, end);
+            start = end;
+        }
+        if (verbosity >= FILEINFO && record.status.equals("downloaded")) {
+            String fileInfo;
+            try {
+                fileInfo = record.file.toString(0);
+            } catch (JSONException e) {
+                fileInfo = record.file.toString();
+            }
+            text.append("FILEINFO: ").append(fileInfo).append(NL).append(NL);
+        }
+    }
+
+    private static int getLevel(String messages, int start) {
+        if (messages.startsWith("ERROR:", start)) return ERROR;
+        if (messages.startsWith("WARNING:", start)) return WARNING;
+        return INFO;
+    }
+
+    private String toJson(Record record, SimpleDateFormat timeFormat) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("time", timeFormat.format(new Date(record.time)));
+            json.put("level", record.getLevel() == ERROR ? "error" : record.getLevel() == WARNING ? "warning" : "info");
+            json.put("account", record.account);
+            json.put("fileId", record.file.optString("fileId", null));
+            json.put("fileName", record.file.optString("fileName", null));
+            json.put("status", record.status);
+            if (record.path != null) json.put("path", record.path);
+            json.put("bytes", record.bytes);
+            json.put("millis", record.millis);
+            JSONArray messages = new JSONArray();
+            for (String line : record.messages.toString().split("\r?\n")) {
+                if (line.length() > 0) messages.add(line);
+            }
+            json.put("messages", messages);
+            return json.toString();
+        } catch (Exception e) {
+            return "{\"error\":\"could not format log record\"}";
+        }
+    }
+
+    private void writeJson(CharSequence lines) {
+        synchronized (jsonLock) {
+            try {
+                if (json == null) json = new OutputStreamWriter(new FileOutputStream(jsonFile, true), "UTF-8");
+                json.append(lines);
+                json.flush();
+            } catch (IOException e) {
+                System.err.println("WARNING: Could not write log file "+jsonFile+": "+e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+
+/**
+ * BwlMetrics
+ *
+ * Collects performance data of a run: counters, and for every kind of operation
+ * (API calls by resource, data transfer, disk writes) the number of calls, errors,
+ * bytes and a latency histogram. Can print a progress line while running and write
+ * a summary at the end, as JSON or in the Prometheus text format.
+ */
+public class BwlMetrics {
+
+    // upper bounds of the latency histogram buckets in milliseconds, the last bucket has no bound
+    private final static long[] BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000, 300000 };
+
+    private final long start = System.currentTimeMillis();
+    private final ConcurrentHashMap<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentHashMap<String, AtomicLong> phases = new ConcurrentHashMap<String, AtomicLong>();
+    private Thread progress = null;
+
+    /**
+     * Statistics of one kind of operation.
+     */
+    private static class Operation {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong totalMillis = new AtomicLong();
+        final AtomicLong maxMillis = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+
+        void record(long millis, long byteCount, boolean error) {
+            count.incrementAndGet();
+            if (error) errors.incrementAndGet();
+            bytes.addAndGet(byteCount);
+            totalMillis.addAndGet(millis);
+            long max;
+            while (millis > (max = maxMillis.get()) && !maxMillis.compareAndSet(max, millis));
+            int bucket = 0;
+            while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) bucket++;
+            buckets.incrementAndGet(bucket);
+        }
+
+        /**
+         * @return the upper bound of the bucket that contains the given quantile, in milliseconds
+         */
+        long percentile(double quantile) {
+            long total = count.get();
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) return Math.min(BOUNDS[i], maxMillis.get());
+            }
+            return maxMillis.get();
+        }
+    }
+
+    /**
+     * Record one operation.
+     *
+     * @param operation the kind of operation, e.g. the name of the API resource
+     * @param millis the duration in milliseconds
+     * @param bytes the number of bytes transferred
+     * @param error true if the operation failed
+     */
+    public void record(String operation, long millis, long bytes, boolean error) {
+        Operation op = operations.get(operation);
+        if (op == null) {
+            operations.putIfAbsent(operation, new Operation());
+            op = operations.get(operation);
+        }
+        op.record(millis, bytes, error);
+    }
+
+    /**
+     * Increase a counter by one.
+     *
+     * @param counter the name of the counter
+     */
+    public void count(String counter) {
+        get(counters, counter).incrementAndGet();
+    }
+
+    /**
+     * Add time spent in a phase of the run.
+     *
+     * @param phase the name of the phase
+     * @param millis the duration in milliseconds
+     */
+    public void phase(String phase, long millis) {
+        get(phases, phase).addAndGet(millis);
+    }
+
+    /**
+     * @param operation the kind of operation
+     * @return the bytes per second of one operation while it runs, 0 if there was none yet
+     */
+    public long getBytesPerSecond(String operation) {
+        Operation op = operations.get(operation);
+        if (op == null || op.totalMillis.get() == 0) return 0;
+        return op.bytes.get() * 1000 / op.totalMillis.get();
+    }
+
+    /**
+     * @return a one line summary of the progress so far
+     */
+    public String progressLine() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        Operation transfer = operations.get("transfer");
+        long bytes = transfer != null ? transfer.bytes.get() : 0;
+        return String.format(Locale.ROOT, "PROGRESS: %ds, %d files downloaded, %d skipped, %d failed, %.1f MB, %.2f MB/s, %.1f files/s",
+                elapsed / 1000, counter("files_downloaded"), counter("files_skipped"), counter("files_failed"),
+                bytes / 1048576.0, bytes / 1048576.0 * 1000 / elapsed, counter("files_downloaded") * 1000.0 / elapsed);
+    }
+
+    /**
+     * Print the progress line periodically until stopProgress is called.
+     *
+     * @param seconds the interval
+     */
+    public synchronized void startProgress(final int seconds) {
+        if (progress != null) return;
+        progress = new Thread("progress") {
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(seconds * 1000L);
+                        System.out.println(progressLine());
+                    }
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+        };
+        progress.setDaemon(true);
+        progress.start();
+    }
+
+    /**
+     * Stop printing the progress line.
+     */
+    public synchronized void stopProgress() {
+        if (progress == null) return;
+        progress.interrupt();
+        progress = null;
+    }
+
+    /**
+     * Write the summary to a file. A file name ending with ".prom" gets the
+     * Prometheus text format, any other name JSON.
+     *
+     * @param file the output file
+     */
+    public void write(File file) {
+        try {
+            String text = file.getName().endsWith(".prom") ? toPrometheus() : toJson().toString(2);
+            FileUtils.writeStringToFile(file, text, "UTF-8");
+        } catch (IOException e) {
+            System.err.println("WARNING: Could not write metrics to file "+file+": "+e.getMessage());
+        } catch (JSONException e) {
+            System.err.println("WARNING: Could not write metrics to file "+file+": "+e.getMessage());
+        }
+    }
+
+    /**
+     * @return the summary as JSON object
+     */
+    public JSONObject toJson() throws JSONException {
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        JSONObject json = new JSONObject();
+        json.put("elapsedMillis", elapsed);
+        JSONObject counterJson = new JSONObject();
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(counters).entrySet()) {
+            counterJson.put(entry.getKey(), entry.getValue().get());
+        }
+        json.put("counters", counterJson);
+        JSONObject phaseJson = new JSONObject();
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(phases).entrySet()) {
+            phaseJson.put(entry.getKey() + "Millis", entry.getValue().get());
+        }
+        json.put("phases", phaseJson);
+        JSONObject operationJson = new JSONObject();
+        for (Map.Entry<String, Operation> entry : new TreeMap<String, Operation>(operations).entrySet()) {
+            Operation op = entry.getValue();
+            JSONObject item = new JSONObject();
+            item.put("count", op.count.get());
+            item.put("errors", op.errors.get());
+            item.put("bytes", op.bytes.get());
+            item.put("totalMillis", op.totalMillis.get());
+            item.put("p50Millis", op.percentile(0.50));
+            item.put("p95Millis", op.percentile(0.95));
+            item.put("p99Millis", op.percentile(0.99));
+            item.put("maxMillis", op.maxMillis.get());
+            item.put("bytesPerSecond", op.bytes.get() * 1000 / elapsed);
+            operationJson.put(entry.getKey(), item);
+        }
+        json.put("operations", operationJson);
+        return json;
+    }
+
+    /**
+     * @return the summary in the Prometheus text exposition format
+     */
+    public String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        text.append("# TYPE bwl_elapsed_seconds gauge\n");
+        text.append("bwl_elapsed_seconds ").append(seconds(System.currentTimeMillis() - start)).append('\n');
+        text.append("# TYPE bwl_files_total counter\n");
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(counters).entrySet()) {
+            text.append("bwl_files_total{state=\"").append(entry.getKey().replace("files_", "")).append("\"} ")
+                    .append(entry.getValue().get()).append('\n');
+        }
+        text.append("# TYPE bwl_phase_seconds gauge\n");
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(phases).entrySet()) {
+            text.append("bwl_phase_seconds{phase=\"").append(entry.getKey()).append("\"} ")
+                    .append(seconds(entry.getValue().get())).append('\n');
+        }
+        Map<String, Operation> sorted = new TreeMap<String, Operation>(operations);
+        text.append("# TYPE bwl_operation_errors_total counter\n");
+        for (Map.Entry<String, Operation> entry : sorted.entrySet()) {
+            text.append("bwl_operation_errors_total{operation=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().errors.get()).append('\n');
+        }
+        text.append("# TYPE bwl_operation_bytes_total counter\n");
+        for (Map.Entry<String, Operation> entry : sorted.entrySet()) {
+            text.append("bwl_operation_bytes_total{operation=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().bytes.get()).append('\n');
+        }
+        text.append("# TYPE bwl_operation_duration_seconds histogram\n");
+        for (Map.Entry<String, Operation> entry : sorted.entrySet()) {
+            Operation op = entry.getValue();
+            String label = "operation=\"" + entry.getKey() + "\"";
+            long cumulative = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                cumulative += op.buckets.get(i);
+                text.append("bwl_operation_duration_seconds_bucket{").append(label).append(",le=\"")
+                        .append(seconds(BOUNDS[i])).append("\"} ").append(cumulative).append('\n');
+            }
+            text.append("bwl_operation_duration_seconds_bucket{").append(label).append(",le=\"+Inf\"} ")
+                    .append(op.count.get()).append('\n');
+            text.append("bwl_operation_duration_seconds_sum{").append(label).append("} ")
+                    .append(seconds(op.totalMillis.get())).append('\n');
+            text.append("bwl_operation_duration_seconds_count{").append(label).append("} ")
+                    .append(op.count.get()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static AtomicLong get(ConcurrentHashMap<String, AtomicLong> values, String name) {
+        AtomicLong value = values.get(name);
+        if (value == null) {
+            values.putIfAbsent(name, new AtomicLong());
+            value = values.get(name);
+        }
+        return value;
+    }
+
+    private long counter(String name) {
+        AtomicLong value = counters.get(name);
+        return value != null ? value.get() : 0;
+    }
+
+    private static String seconds(long millis) {
+        return String.format(Locale.ROOT, "%.3f", millis / 1000.0);
+    }
+}
@@ -0,0 +1,197 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * BwlNameCache
+ *
+ * Remembers the names of processes, apps and instances resolved by API calls,
+ * so that every name is requested only once per run, no matter how many files
+ * are attached to the same element. Parallel lookups of the same key wait for
+ * the one request that is already running.
+ *
+ * Optionally the names are kept in a file, so that the next run starts with the
+ * names of the previous runs. Names older than the given time to live are dropped,
+ * from the file when it is loaded and from memory when the cache is refreshed.
+ */
+public class BwlNameCache {
+
+    private final ConcurrentHashMap<String, Future<String>> names = new ConcurrentHashMap<String, Future<String>>();
+    private final Map<String, Long> loadTimes = new ConcurrentHashMap<String, Long>();
+    private final File file;
+    private final long timeToLive;
+
+    /**
+     * Create a cache that lives in memory only.
+     */
+    public BwlNameCache() {
+        this(null, 0);
+    }
+
+    /**
+     * Create a cache that is backed by a file.
+     *
+     * @param file the file to load the names from and save them to, null for memory only
+     * @param timeToLive time in milliseconds a resolved name remains valid
+     */
+    public BwlNameCache(File file, long timeToLive) {
+        this.file = file;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Get the name for a key. If the name is not known yet, the loader is called.
+     * If the loader fails, nothing is remembered and the next call will try again.
+     *
+     * @param key the key, e.g. "process:" + processId
+     * @param loader the API call that returns the name
+     * @return the name
+     */
+    public String get(String key, Callable<String> loader) throws Exception {
+        Future<String> future = names.get(key);
+        boolean loaded = false;
+        if (future == null) {
+            FutureTask<String> task = new FutureTask<String>(loader);
+            future = names.putIfAbsent(key, task);
+            if (future == null) {
+                future = task;
+                task.run();
+                loaded = true;
+            }
+        }
+        try {
+            String name = future.get();
+            // the age of the name, it expires like a name from the file
+            if (loaded) loadTimes.put(key, System.currentTimeMillis());
+            return name;
+        } catch (ExecutionException e) {
+            names.remove(key, future);
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw e;
+        }
+    }
+
+    /**
+     * Read the names from the cache file, if there is one. Expired entries are ignored.
+     */
+    public void load() {
+        if (file == null || !file.exists()) return;
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            properties.load(in);
+        } catch (IOException e) {
+            System.err.println("WARNING: Could not read name cache "+file+" - will start with an empty cache");
+            return;
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException e) { e.printStackTrace(); }
+        }
+        long now = System.currentTimeMillis();
+        for (String key : properties.stringPropertyNames()) {
+            String value = properties.getProperty(key);
+            int sep = value.indexOf(':');
+            if (sep < 0) continue;
+            long loaded;
+            try {
+                loaded = Long.parseLong(value.substring(0, sep));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (now - loaded > timeToLive) continue;
+            FutureTask<String> task = new FutureTask<String>(new Constant(value.substring(sep + 1)));
+            task.run();
+            names.put(key, task);
+            loadTimes.put(key, loaded);
+        }
+    }
+
+    /**
+     * Drop the names that could not be resolved and the names that are older than the time
+     * to live, so that they are requested again. For a long running process.
+     *
+     * @param unknown the name used for elements that could not be resolved
+     */
+    public void refresh(String unknown) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Future<String>> entry : names.entrySet()) {
+            Future<String> future = entry.getValue();
+            if (!future.isDone()) continue;
+            Long loaded = loadTimes.get(entry.getKey());
+            boolean expired = loaded != null && now - loaded > timeToLive;
+            try {
+                if (!expired && !unknown.equals(future.get())) continue;
+            } catch (Exception e) {
+                // failed lookups are removed by get already
+            }
+            names.remove(entry.getKey(), future);
+            loadTimes.remove(entry.getKey());
+        }
+    }
+
+    /**
+     * Write all resolved names to the cache file, if there is one, with the time they were
+     * resolved. Names that could not be resolved are not saved.
+     *
+     * @param unknown the name used for elements that could not be resolved
+     */
+    public void save(String unknown) {
+        if (file == null) return;
+        Properties properties = new Properties();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Future<String>> entry : names.entrySet()) {
+            Future<String> future = entry.getValue();
+            if (!future.isDone()) continue;
+            String name;
+            try {
+                name = future.get();
+            } catch (Exception e) {
+                continue;
+            }
+            if (name == null || name.equals(unknown)) continue;
+            Long loaded = loadTimes.get(entry.getKey());
+            properties.setProperty(entry.getKey(), (loaded != null ? loaded : now) + ":" + name);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            properties.store(out, "BwlFileDownloader name cache");
+            out.close();
+            out = null;
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("WARNING: Could not write name cache "+file+": "+e.getMessage());
+        } finally {
+            if (out != null) try { out.close(); } catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+
+    /**
+     * A loader for names read from the cache file.
+     */
+    private static class Constant implements Callable<String> {
+        private final String value;
+
+        Constant(String value) {
+            this.value = value;
+        }
+
+        public String call() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * BwlOutputIndex
+ *
+ * Keeps the names of the files in the output directories during a run, so that a free
+ * file name is found without asking the file system for every candidate. A directory is
+ * created and listed once, when the first file is stored in it; afterwards the index is
+ * updated with every file reserved for a download. The names of a directory are guarded
+ * by the directory entry, so downloads to different directories do not wait for each other.
+ */
+public class BwlOutputIndex {
+
+    // file systems that ignore the case of names, e.g. on Windows, are indexed in lower case
+    private final static boolean IGNORE_CASE = new File("A").equals(new File("a"));
+
+    private final ConcurrentHashMap<File, Directory> directories = new ConcurrentHashMap<File, Directory>();
+
+    /**
+     * The names in one directory.
+     */
+    private static class Directory {
+        final File path;
+        boolean listed = false;
+        final Set<String> names = new HashSet<String>();              // existing and reserved files
+        final Set<String> inProgress = new HashSet<String>();         // files reserved by a download
+        final Map<String, Integer> nextNumber = new HashMap<String, Integer>();  // next number to try for a name
+
+        Directory(File path) {
+            this.path = path;
+        }
+
+        /**
+         * Create and list the directory, on first use.
+         */
+        void list() throws IOException {
+            if (listed) return;
+            FileUtils.forceMkdir(path);
+            String[] files = path.list();
+            if (files != null) {
+                for (String name : files) names.add(key(name));
+            }
+            listed = true;
+        }
+    }
+
+    /**
+     * Create a directory, unless it was created or used before in this run.
+     *
+     * @param path the directory
+     */
+    public void makeDirectory(File path) throws IOException {
+        Directory directory = get(path);
+        synchronized (directory) {
+            directory.list();
+        }
+    }
+
+    /**
+     * Reserve an output file until release is called. With rename, a name that exists or is
+     * reserved is replaced by name_2.ext, name_3.ext, ... Without rename this waits until a
+     * download to the same file is finished.
+     *
+     * @param path the directory, will be created, if it does not exist
+     * @param fileName the name of the file
+     * @param rename true to find a free name
+     * @return the file to write to
+     */
+    public File reserve(File path, String fileName, boolean rename) throws IOException, InterruptedException {
+        Directory directory = get(path);
+        synchronized (directory) {
+            directory.list();
+            if (rename && directory.names.contains(key(fileName))) {
+                String base = FilenameUtils.getBaseName(fileName);
+                String ext = FilenameUtils.getExtension(fileName);
+                Integer next = directory.nextNumber.get(key(fileName));
+                int i = next != null ? next : 2;
+                while (directory.names.contains(key(base + "_" + i + "." + ext))) i++;
+                directory.nextNumber.put(key(fileName), i + 1);
+                fileName = base + "_" + i + "." + ext;
+            }
+            while (directory.inProgress.contains(key(fileName))) directory.wait();
+            directory.names.add(key(fileName));
+            directory.inProgress.add(key(fileName));
+            return new File(path, fileName);
+        }
+    }
+
+    /**
+     * Release a file reserved by reserve. If the download did not create the file,
+     * its name is free again.
+     *
+     * @param output the reserved file
+     */
+    public void release(File output) {
+        Directory directory = get(output.getParentFile());
+        synchronized (directory) {
+            directory.inProgress.remove(key(output.getName()));
+            if (!output.exists()) directory.names.remove(key(output.getName()));
+            directory.notifyAll();
+        }
+    }
+
+    private Directory get(File path) {
+        path = path.getAbsoluteFile();
+        Directory directory = directories.get(path);
+        if (directory == null) {
+            directories.putIfAbsent(path, new Directory(path));
+            directory = directories.get(path);
+        }
+        return directory;
+    }
+
+    private static String key(String name) {
+        return IGNORE_CASE ? name.toLowerCase(Locale.ROOT) : name;
+    }
+}
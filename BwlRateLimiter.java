@@ -0,0 +1,110 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * BwlRateLimiter
+ *
+ * Limits the number of API requests that are waiting for the server at the same time.
+ * The limit adapts to the server: it grows slowly while requests succeed and is halved
+ * when the server signals overload (HTTP 429 or 503, connection errors) or the response
+ * time grows far beyond the best one seen so far (additive increase, multiplicative decrease).
+ * The response times are compared per resource, a long file list is not compared with a
+ * quick name lookup.
+ * A Retry-After answer pauses all requests for the given time.
+ */
+public class BwlRateLimiter {
+
+    private final static long DECREASE_INTERVAL = 1000;  // at most one decrease per second, for a burst of errors
+    private final static double LATENCY_FACTOR = 4.0;     // response time that counts as overload, relative to the best of the resource
+
+    private final int maxLimit;
+    private double limit;
+    private int inFlight = 0;
+    private long pausedUntil = 0;
+    private long lastDecrease = 0;
+    private final Map<String, Latency> latencies = new HashMap<String, Latency>();
+
+    /**
+     * The response times of one resource.
+     */
+    private static class Latency {
+        long best = Long.MAX_VALUE;
+        double average = -1;
+    }
+
+    /**
+     * @param maxLimit the maximum number of requests at the same time
+     */
+    public BwlRateLimiter(int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = this.maxLimit;
+    }
+
+    /**
+     * Wait until a request may be sent.
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (true) {
+            long pause = pausedUntil - System.currentTimeMillis();
+            if (pause > 0) wait(pause);
+            else if (inFlight >= (int) limit) wait();
+            else break;
+        }
+        inFlight++;
+    }
+
+    /**
+     * Report a successful request and release it.
+     *
+     * @param resource the API resource of the request, e.g. "ListFiles"
+     * @param latency the time until the response arrived, in milliseconds
+     */
+    public synchronized void success(String resource, long latency) {
+        inFlight--;
+        Latency times = latencies.get(resource);
+        if (times == null) {
+            times = new Latency();
+            latencies.put(resource, times);
+        }
+        if (latency < times.best) times.best = Math.max(1, latency);
+        times.average = times.average < 0 ? latency : 0.9 * times.average + 0.1 * latency;
+        if (times.average > LATENCY_FACTOR * times.best && times.average > 100) decrease();
+        else if (limit < maxLimit) limit = Math.min(maxLimit, limit + 1.0 / limit);
+        notifyAll();
+    }
+
+    /**
+     * Report a request the server could not handle and release it.
+     *
+     * @param retryAfter time in milliseconds the server asked to wait, 0 if not given
+     */
+    public synchronized void overload(long retryAfter) {
+        inFlight--;
+        decrease();
+        if (retryAfter > 0) pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + retryAfter);
+        notifyAll();
+    }
+
+    /**
+     * Release a request without changing the limit, e.g. for a client error.
+     */
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * @return the current number of requests allowed at the same time
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    private void decrease() {
+        long now = System.currentTimeMillis();
+        if (now - lastDecrease < DECREASE_INTERVAL) return;
+        lastDecrease = now;
+        limit = Math.max(1, limit / 2);
+        for (Latency latency : latencies.values()) latency.average = -1;
+    }
+}
@@ -0,0 +1,227 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * BwlRestClient
+ *
+ * Opens the connections for all calls of the Blueworks Live REST API.
+ *
+ * The connections are kept alive and reused by the keep-alive cache of the JVM,
+ * so TLS handshakes are only needed for new connections. A connection can only be
+ * reused if its response was read completely and the stream was closed,
+ * therefore every response must end with close() or discard().
+ *
+ * Requests sent with execute() are limited by a BwlRateLimiter and repeated with
+ * an exponential backoff if the server is overloaded or the connection fails.
+ */
+public class BwlRestClient {
+
+    private final static int CONNECT_TIMEOUT = 30 * 1000;
+    private final static int READ_TIMEOUT = 5 * 60 * 1000;
+    private final static int MAX_ATTEMPTS = 6;             // one request and up to five retries
+    private final static long BACKOFF_BASE = 500;          // milliseconds before the first retry
+    private final static long BACKOFF_MAX = 60 * 1000;     // upper limit of a single wait
+    private final static String NL = System.getProperty("line.separator");
+
+    private final String authorization;
+    private final BwlRateLimiter limiter;
+    private final BwlMetrics metrics;
+
+    /**
+     * @param username the Blueworks Live user
+     * @param password the password of the user
+     * @param limiter limits the requests to the server, may be shared by several clients
+     * @param metrics records the time until the response of every call
+     */
+    public BwlRestClient(String username, String password, BwlRateLimiter limiter, BwlMetrics metrics) {
+        this.limiter = limiter;
+        this.metrics = metrics;
+        String userPwd = username + ":" + password;
+        try {
+            this.authorization = "Basic " + Base64.getEncoder().encodeToString(userPwd.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Set the number of idle connections per server kept for reuse.
+     * Must be called before the first connection is opened.
+     *
+     * @param connections the number of connections, e.g. the number of parallel downloads
+     */
+    public static void setPoolSize(int connections) {
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(Math.max(5, connections)));
+        }
+    }
+
+    /**
+     * Set up the connection to a REST API including the Basic Authentication request header
+     * that must be present on every API call.
+     *
+     * @param apiCall The URL string indicating the api call and parameters.
+     * @return the connection, not yet connected
+     */
+    public HttpURLConnection open(String apiCall) throws IOException {
+        URL restApiUrl = new URL(apiCall);
+        HttpURLConnection restApiURLConnection = (HttpURLConnection) restApiUrl.openConnection();
+        restApiURLConnection.setRequestProperty("Authorization", authorization);
+        restApiURLConnection.setConnectTimeout(CONNECT_TIMEOUT);
+        restApiURLConnection.setReadTimeout(READ_TIMEOUT);
+        return restApiURLConnection;
+    }
+
+    /**
+     * Send a GET request and wait for the response. Connection errors and the responses
+     * 429 (too many requests), 500, 502, 503 and 504 are retried after a random wait that
+     * doubles with every attempt, or after the time the server asked for with Retry-After.
+     *
+     * @param apiCall The URL string indicating the api call and parameters.
+     * @param headers additional request headers, may be null
+     * @param log collects the messages of the call, e.g. of a file, null to print them
+     * @return the connection with the response, the response code is available without further waiting
+     */
+    public HttpURLConnection execute(String apiCall, Map<String, String> headers, StringBuilder log) throws IOException {
+        IOException lastError = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            if (attempt > 1) {
+                String message = "WARNING: Retry "+(attempt-1)+" of API call "+apiCall;
+                if (log != null) log.append(message).append(NL);
+                else System.err.println(message);
+            }
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for API call " + apiCall);
+            }
+            long start = System.currentTimeMillis();
+            long retryAfter = 0;
+            HttpURLConnection connection = null;
+            try {
+                connection = open(apiCall);
+                if (headers != null) {
+                    for (Map.Entry<String, String> header : headers.entrySet()) {
+                        connection.setRequestProperty(header.getKey(), header.getValue());
+                    }
+                }
+                int responseCode = connection.getResponseCode();
+                metrics.record(getResource(apiCall), System.currentTimeMillis() - start, 0, responseCode >= 400);
+                if (!isRetryable(responseCode) || attempt == MAX_ATTEMPTS) {
+                    if (responseCode < 400) limiter.success(getResource(apiCall), System.currentTimeMillis() - start);
+                    else if (isRetryable(responseCode)) limiter.overload(0);
+                    else limiter.release();
+                    return connection;
+                }
+                retryAfter = getRetryAfter(connection);
+                lastError = new IOException("HTTP " + responseCode + " " + connection.getResponseMessage());
+                discard(connection);
+                limiter.overload(retryAfter);
+            } catch (IOException e) {
+                lastError = e;
+                metrics.record(getResource(apiCall), System.currentTimeMillis() - start, 0, true);
+                if (connection != null) connection.disconnect();
+                limiter.overload(0);
+                if (attempt == MAX_ATTEMPTS) break;
+            }
+            sleep(Math.max(retryAfter, backoff(attempt)));
+        }
+        throw lastError;
+    }
+
+    /**
+     * Send a GET request without additional headers.
+     *
+     * @param apiCall The URL string indicating the api call and parameters.
+     * @return the connection with the response
+     * @see #execute(String, Map, StringBuilder)
+     */
+    public HttpURLConnection execute(String apiCall) throws IOException {
+        return execute(apiCall, null, null);
+    }
+
+    /**
+     * @return the name of the API resource, e.g. "ListFiles"
+     */
+    private static String getResource(String apiCall) {
+        int start = apiCall.indexOf("/api/");
+        start = start < 0 ? 0 : start + 5;
+        int end = apiCall.indexOf('?', start);
+        return apiCall.substring(start, end < 0 ? apiCall.length() : end);
+    }
+
+    private static boolean isRetryable(int responseCode) {
+        return responseCode == 429 || responseCode == 500 || responseCode == 502
+                || responseCode == 503 || responseCode == 504;
+    }
+
+    /**
+     * @return the wait time requested with the Retry-After header in milliseconds, 0 if none
+     */
+    private static long getRetryAfter(HttpURLConnection connection) {
+        String value = connection.getHeaderField("Retry-After");
+        if (value == null) return 0;
+        try {
+            return Math.min(BACKOFF_MAX * 5, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            long date = connection.getHeaderFieldDate("Retry-After", 0);
+            return date > 0 ? Math.min(BACKOFF_MAX * 5, Math.max(0, date - System.currentTimeMillis())) : 0;
+        }
+    }
+
+    /**
+     * @return a random wait time of up to BACKOFF_BASE * 2^(attempt-1), at most BACKOFF_MAX
+     */
+    private static long backoff(int attempt) {
+        long max = Math.min(BACKOFF_MAX, BACKOFF_BASE << Math.min(attempt - 1, 20));
+        return max / 2 + (long) (Math.random() * max / 2);
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for retry");
+        }
+    }
+
+    /**
+     * Close a response stream.
+     *
+     * @param inputStream the stream, may be null
+     */
+    public static void close(InputStream inputStream) {
+        if (inputStream == null) return;
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Read and close an error response, so that the connection can be reused.
+     *
+     * @param connection the connection
+     */
+    public static void discard(HttpURLConnection connection) {
+        InputStream inputStream = connection.getErrorStream();
+        if (inputStream == null) return;
+        try {
+            byte[] bytes = new byte[4096];
+            while (inputStream.read(bytes) != -1);
+        } catch (IOException e) {
+            connection.disconnect();
+        } finally {
+            close(inputStream);
+        }
+    }
+}
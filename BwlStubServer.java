@@ -0,0 +1,223 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * BwlStubServer
+ *
+ * A local stand-in for the Blueworks Live REST API, to measure and test BwlFileDownloader
+ * without network access. It serves the resources ListFiles, FileDownload (with range
+ * requests), ProcessData, AppList, AppDetail and WorkDetail for generated files.
+ * The number of files, their size, the response latency and the rate of failed
+ * requests (HTTP 503 with Retry-After) can be configured.
+ *
+ * Run it:
+ *    java -cp .;commons-io-2.4.jar;wink-json4j-1.3.0.jar BwlStubServer [port] [files] [fileSize] [latencyMillis] [errorRate]
+ *
+ * and point BwlFileDownloader to it with: -u http://localhost:port
+ */
+public class BwlStubServer {
+
+    private final int fileCount;
+    private final int fileSize;
+    private final int latency;
+    private final double errorRate;
+    private final Random random = new Random();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param fileCount the number of files in the file list
+     * @param fileSize the size of every file in bytes
+     * @param latency the time in milliseconds every request waits before the response
+     * @param errorRate the part of the requests answered with 503, between 0 and 1
+     */
+    public BwlStubServer(int fileCount, int fileSize, int latency, double errorRate) {
+        this.fileCount = fileCount;
+        this.fileSize = fileSize;
+        this.latency = latency;
+        this.errorRate = errorRate;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 100 * 1024;
+        int latency = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        double errorRate = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+        BwlStubServer stub = new BwlStubServer(files, size, latency, errorRate);
+        stub.start(port);
+        System.out.println("Stub server with "+files+" files of "+size+" bytes at "+stub.getUrl());
+    }
+
+    /**
+     * Start the server.
+     *
+     * @param port the port, 0 for any free port
+     */
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 100);
+        server.createContext("/scr/api/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Stop the server.
+     */
+    public void stop() {
+        if (server == null) return;
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+    }
+
+    /**
+     * @return the URL to use as server of BwlFileDownloader
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return the number of bytes of all files
+     */
+    public long getTotalBytes() {
+        return (long) fileCount * fileSize;
+    }
+
+    /**
+     * @return the file list as returned by ListFiles
+     */
+    public String getFileList() {
+        StringBuilder json = new StringBuilder(fileCount * 200 + 20);
+        json.append("{\"files\":[");
+        for (int i = 0; i < fileCount; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"fileId\":\"F").append(i).append("\",\"fileName\":\"file").append(i % 100).append(".bin\"")
+                    .append(",\"fileSize\":").append(fileSize).append(",\"uploadUserId\":\"U1\"")
+                    .append(",\"uploadDate\":\"2015-").append(String.format("%02d-%02d", 1 + i % 12, 1 + i % 28))
+                    .append("T10:00:00Z\",\"attachedToType\":\"").append(TYPES[i % TYPES.length])
+                    .append("\",\"attachedToId\":\"P").append(i % 50).append("\"}");
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    private final static String[] TYPES = { "process", "app", "instance", "post" };
+
+    private void serve(HttpExchange exchange) throws IOException {
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+        if (errorRate > 0 && random.nextDouble() < errorRate) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            exchange.sendResponseHeaders(503, -1);
+            return;
+        }
+        URI uri = exchange.getRequestURI();
+        String resource = uri.getPath().substring("/scr/api/".length());
+        Map<String, String> query = parseQuery(uri.getRawQuery());
+        if (resource.equals("ListFiles")) {
+            sendJson(exchange, getFileList());
+        } else if (resource.equals("FileDownload")) {
+            sendFile(exchange, query.get("fileItemId"));
+        } else if (resource.equals("ProcessData")) {
+            String id = query.get("processId");
+            sendJson(exchange, "{\"items\":{\"" + id + "\":{\"name\":\"Process " + id + "\"}}}");
+        } else if (resource.equals("AppList")) {
+            StringBuilder json = new StringBuilder("{\"apps\":[");
+            for (int i = 0; i < 50; i++) {
+                if (i > 0) json.append(',');
+                json.append("{\"id\":\"A").append(i).append("\",\"processId\":\"P").append(i)
+                        .append("\",\"name\":\"App ").append(i).append("\",\"type\":\"app\"}");
+            }
+            sendJson(exchange, json.append("]}").toString());
+        } else if (resource.equals("AppDetail")) {
+            sendJson(exchange, "{\"app\":{\"name\":\"App " + query.get("appId") + "\"}}");
+        } else if (resource.equals("WorkDetail")) {
+            sendJson(exchange, "{\"work\":{\"name\":\"Instance " + query.get("workId") + "\"}}");
+        } else {
+            exchange.sendResponseHeaders(404, -1);
+        }
+    }
+
+    private static void sendJson(HttpExchange exchange, String json) throws IOException {
+        byte[] bytes = json.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    /**
+     * Send the content of a file, bytes derived from the file ID and the position.
+     */
+    private void sendFile(HttpExchange exchange, String fileId) throws IOException {
+        long from = 0;
+        long to = fileSize - 1;
+        int status = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring(6).split("-", 2);
+            from = Long.parseLong(bounds[0]);
+            if (bounds.length > 1 && bounds[1].length() > 0) to = Math.min(to, Long.parseLong(bounds[1]));
+            if (from > to) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + fileSize);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            status = 206;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + fileSize);
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        long length = to - from + 1;
+        exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+        if (length == 0) return;
+        int seed = fileId != null ? fileId.hashCode() : 0;
+        byte[] buffer = new byte[64 * 1024];
+        OutputStream out = exchange.getResponseBody();
+        long position = from;
+        while (position <= to) {
+            int chunk = (int) Math.min(buffer.length, to - position + 1);
+            for (int i = 0; i < chunk; i++) buffer[i] = (byte) (seed + position + i);
+            out.write(buffer, 0, chunk);
+            position += chunk;
+        }
+        out.close();
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> values = new HashMap<String, String>();
+        if (query == null) return values;
+        for (String pair : query.split("&")) {
+            int sep = pair.indexOf('=');
+            if (sep > 0) values.put(pair.substring(0, sep), pair.substring(sep + 1));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,226 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * BwlSyncManifest
+ *
+ * Remembers every file that was downloaded, so that an incremental run only downloads
+ * files that are new or were not completed before.
+ *
+ * The manifest file is a log of binary records, each protected by a CRC32 checksum.
+ * A change of an entry appends a new record, the last record of a file ID wins.
+ * A record that was not written completely, e.g. because the process was killed,
+ * is dropped when the manifest is opened. If the log contains much more records than
+ * entries, it is rewritten with one record per entry.
+ */
+public class BwlSyncManifest {
+
+    private final static int MAGIC = 0x42574C4D;  // "BWLM"
+    private final static int VERSION = 2;  // 2: with content hash
+    private final static int HEADER_LENGTH = 8;
+
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private OutputStream out = null;
+
+    /**
+     * A file in the manifest.
+     */
+    public static class Entry {
+        public final String fileId;
+        public final String uploadDate;
+        public final long fileSize;
+        public final String path;
+        public final String hash;
+        public final boolean complete;
+
+        /**
+         * @param fileId the ID of the file
+         * @param uploadDate the upload date from the file list
+         * @param fileSize the size from the file list, -1 if unknown
+         * @param path the output file
+         * @param hash the hash of the content, null if unknown
+         * @param complete true if the download is complete
+         */
+        public Entry(String fileId, String uploadDate, long fileSize, String path, String hash, boolean complete) {
+            this.fileId = fileId;
+            this.uploadDate = uploadDate;
+            this.fileSize = fileSize;
+            this.path = path;
+            this.hash = hash;
+            this.complete = complete;
+        }
+    }
+
+    /**
+     * @param file the manifest file, will be created if it does not exist
+     */
+    public BwlSyncManifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load the manifest and prepare it for updates.
+     */
+    public synchronized void open() throws IOException {
+        int records = 0;
+        int version = VERSION;
+        long validLength = HEADER_LENGTH;
+        if (file.exists() && file.length() > 0) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            try {
+                if (in.readInt() != MAGIC) throw new IOException(file + " is not a manifest file");
+                version = in.readInt();
+                if (version < 1 || version > VERSION) throw new IOException("unsupported manifest version " + version + " in " + file);
+                while (true) {
+                    Entry entry;
+                    int length;
+                    try {
+                        length = in.readInt();
+                        if (length <= 0 || length > 1024 * 1024) break;
+                        byte[] payload = new byte[length];
+                        in.readFully(payload);
+                        CRC32 crc = new CRC32();
+                        crc.update(payload);
+                        if (in.readInt() != (int) crc.getValue()) break;
+                        entry = decode(payload, version);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    entries.put(entry.fileId, entry);
+                    validLength += 4 + length + 4;
+                    records++;
+                }
+            } finally {
+                in.close();
+            }
+            if (validLength < file.length()) {
+                System.err.println("WARNING: Manifest "+file+" was not closed properly, an incomplete record is dropped");
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(validLength);
+                } finally {
+                    raf.close();
+                }
+            }
+            if (version < VERSION || records > 2 * entries.size() + 1000) compact();
+        } else {
+            writeHeader(file);
+        }
+        out = new FileOutputStream(file, true);
+    }
+
+    /**
+     * @param fileId the ID of the file
+     * @return the entry of the file, null if the file is not in the manifest
+     */
+    public synchronized Entry get(String fileId) {
+        return entries.get(fileId);
+    }
+
+    /**
+     * Add or replace an entry. The record is written before this method returns.
+     *
+     * @param entry the new entry
+     */
+    public synchronized void put(Entry entry) throws IOException {
+        if (out == null) throw new IOException("manifest " + file + " is not open");
+        out.write(encodeRecord(entry));
+        out.flush();
+        entries.put(entry.fileId, entry);
+    }
+
+    /**
+     * @return the number of files in the manifest
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Close the manifest file.
+     */
+    public synchronized void close() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            System.err.println("WARNING: Could not close manifest "+file+": "+e.getMessage());
+        }
+        out = null;
+    }
+
+    /**
+     * Rewrite the manifest with one record per entry.
+     */
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        writeHeader(tmp);
+        OutputStream tmpOut = new BufferedOutputStream(new FileOutputStream(tmp, true), 64 * 1024);
+        try {
+            for (Entry entry : entries.values()) tmpOut.write(encodeRecord(entry));
+        } finally {
+            tmpOut.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeHeader(File target) throws IOException {
+        DataOutputStream header = new DataOutputStream(new FileOutputStream(target));
+        try {
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+        } finally {
+            header.close();
+        }
+    }
+
+    private static byte[] encodeRecord(Entry entry) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+        DataOutputStream data = new DataOutputStream(payload);
+        data.writeUTF(entry.fileId);
+        data.writeUTF(entry.uploadDate);
+        data.writeLong(entry.fileSize);
+        data.writeUTF(entry.path);
+        data.writeBoolean(entry.complete);
+        data.writeUTF(entry.hash != null ? entry.hash : "");
+        data.flush();
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + 8);
+        DataOutputStream recordData = new DataOutputStream(record);
+        recordData.writeInt(bytes.length);
+        recordData.write(bytes);
+        recordData.writeInt((int) crc.getValue());
+        recordData.flush();
+        return record.toByteArray();
+    }
+
+    private static Entry decode(byte[] payload, int version) throws IOException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+        String fileId = data.readUTF();
+        String uploadDate = data.readUTF();
+        long fileSize = data.readLong();
+        String path = data.readUTF();
+        boolean complete = data.readBoolean();
+        String hash = version >= 2 ? data.readUTF() : "";
+        return new Entry(fileId, uploadDate, fileSize, path, hash.length() > 0 ? hash : null, complete);
+    }
+}
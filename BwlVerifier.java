@@ -0,0 +1,226 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.wink.json4j.JSONObject;
+
+/**
+ * BwlVerifier
+ *
+ * Checks the files of an earlier download against the file list, without downloading them.
+ * Every expected file is checked for its existence and its size, and optionally its content
+ * hash is calculated and compared with the hash of the manifest. The checks run in parallel,
+ * one thread per processor, large files are read memory mapped. At the end, the files in the
+ * output directory that are not in the list are reported as extra files, except the blobs and
+ * the temporary files of unfinished downloads.
+ */
+public class BwlVerifier {
+
+    // the results of a check
+    public final static String OK = "ok";
+    public final static String MISSING = "missing";
+    public final static String TRUNCATED = "truncated";        // smaller than in the list
+    public final static String WRONG_SIZE = "wrong size";      // larger than in the list
+    public final static String CORRUPT = "corrupt";            // the hash differs from the manifest
+    public final static String UNREADABLE = "unreadable";
+    public final static String OUTDATED = "outdated";          // the manifest has another version of the file
+    public final static String ARCHIVED = "archived";          // in a ZIP archive, not checked
+    public final static String EXTRA = "extra";                // not in the list
+
+    private final static long MAP_SIZE = 4 * 1024 * 1024;   // files from this size on are read memory mapped
+    private final static long MAP_CHUNK = 64 * 1024 * 1024; // mapped at once, keeps the address space small
+    private final static String[] TEMPORARY_SUFFIXES = {
+            BwlFileDownloader.PART_SUFFIX, BwlFileDownloader.SEGMENT_SUFFIX, BwlFileDownloader.SEGMENT_DONE_SUFFIX };
+
+    private final String algorithm;
+    private final BwlFairScheduler workers;
+    private final List<Result> results = Collections.synchronizedList(new ArrayList<Result>());
+    private final Set<File> expected = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    /**
+     * The result of the check of a file.
+     */
+    public static class Result {
+        public final JSONObject file;  // the entry of the file list, null for an extra file
+        public final File path;
+        public final long fileSize;    // the size from the file list, -1 if unknown
+        public String status = null;
+        public long size = -1;         // the size of the local file
+        public String hash = null;     // the hash of the local file, if it was calculated
+
+        Result(JSONObject file, File path, long fileSize) {
+            this.file = file;
+            this.path = path;
+            this.fileSize = fileSize;
+        }
+
+        /**
+         * @return true if the file has to be downloaded again
+         */
+        public boolean isBad() {
+            return !status.equals(OK) && !status.equals(ARCHIVED) && !status.equals(EXTRA);
+        }
+    }
+
+    /**
+     * Create the verifier and start the threads for the checks.
+     *
+     * @param algorithm the hash algorithm of the manifest
+     * @param threads the number of files checked at the same time
+     */
+    public BwlVerifier(String algorithm, int threads) {
+        this.algorithm = algorithm;
+        this.workers = new BwlFairScheduler(threads, threads * 4, "verify");
+    }
+
+    /**
+     * Check a file of the list. Returns when the check is started, waits if too many are waiting.
+     *
+     * @param file the entry of the file list
+     * @param path the local file
+     * @param fileSize the size from the file list, -1 if unknown
+     * @param expectedHash the hash from the manifest, null if unknown
+     * @param hash true to calculate the hash, even if there is none to compare it with
+     */
+    public void check(JSONObject file, File path, long fileSize, final String expectedHash, final boolean hash) throws InterruptedException {
+        final Result result = new Result(file, path, fileSize);
+        expected.add(key(path));
+        workers.submit(this, new Runnable() {
+            public void run() {
+                check(result, expectedHash, hash || expectedHash != null);
+                results.add(result);
+            }
+        });
+    }
+
+    /**
+     * Add a file of the list that is not checked, e.g. because it is outdated.
+     *
+     * @param file the entry of the file list
+     * @param path the local file
+     * @param fileSize the size from the file list, -1 if unknown
+     * @param status the result
+     */
+    public void report(JSONObject file, File path, long fileSize, String status) {
+        Result result = new Result(file, path, fileSize);
+        result.status = status;
+        expected.add(key(path));
+        results.add(result);
+    }
+
+    /**
+     * Wait for all checks and look for the extra files in the output directory.
+     *
+     * @param directory the output directory, null to not look for extra files
+     * @param ignored files and directories that are not reported as extra, e.g. the manifest
+     * @return the results of all files
+     */
+    public List<Result> finish(File directory, Set<File> ignored) throws InterruptedException {
+        workers.awaitCompletion(this);
+        workers.shutdown();
+        if (directory != null) {
+            Set<File> skipped = new HashSet<File>();
+            for (File file : ignored) skipped.add(key(file));
+            findExtra(key(directory), skipped);
+        }
+        return new ArrayList<Result>(results);
+    }
+
+    /**
+     * Calculate the hash of a file. Large files are mapped into memory in chunks, so the
+     * digest reads the pages of the file cache without copying them.
+     *
+     * @param file the file
+     * @param algorithm the hash algorithm
+     * @return the hash as hex string
+     */
+    public static String hashFile(File file, String algorithm) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(algorithm);
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size >= MAP_SIZE) {
+                for (long position = 0; position < size; position += MAP_CHUNK) {
+                    digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_CHUNK, size - position)));
+                }
+            }
+            else {
+                byte[] bytes = BwlFileDownloader.BUFFERS.get();
+                int read;
+                while ((read = in.read(bytes)) != -1) digest.update(bytes, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return BwlFileDownloader.toHex(digest.digest());
+    }
+
+    private void check(Result result, String expectedHash, boolean hash) {
+        if (!result.path.isFile()) {
+            result.status = MISSING;
+            return;
+        }
+        result.size = result.path.length();
+        if (result.fileSize >= 0 && result.size < result.fileSize) result.status = TRUNCATED;
+        else if (result.fileSize >= 0 && result.size > result.fileSize) result.status = WRONG_SIZE;
+        else if (!hash) result.status = OK;
+        else {
+            try {
+                result.hash = hashFile(result.path, algorithm);
+                result.status = expectedHash == null || expectedHash.equals(result.hash) ? OK : CORRUPT;
+            } catch (Exception e) {
+                result.status = UNREADABLE;
+            }
+        }
+    }
+
+    private void findExtra(File directory, Set<File> ignored) {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (ignored.contains(file)) continue;
+            if (file.isDirectory()) {
+                // the blobs are the content of the listed files, not extra files
+                if (file.getName().equals(BwlFileDownloader.BLOB_DIRECTORY)) continue;
+                // linked directories are not followed, they may lead back into the tree
+                if (!Files.isSymbolicLink(file.toPath())) findExtra(file, ignored);
+            }
+            else if (!expected.contains(file) && !isTemporary(file)) {
+                Result result = new Result(null, file, -1);
+                result.status = EXTRA;
+                result.size = file.length();
+                results.add(result);
+            }
+        }
+    }
+
+    /**
+     * @return true for a file of an unfinished download, it is continued or removed by the next download
+     */
+    private static boolean isTemporary(File file) {
+        for (String suffix : TEMPORARY_SUFFIXES) {
+            if (file.getName().endsWith(suffix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the absolute path without "." and "..", to compare paths of the list and the directory
+     */
+    private static File key(File file) {
+        String path = FilenameUtils.normalizeNoEndSeparator(file.getAbsolutePath());
+        return path != null ? new File(path) : file.getAbsoluteFile();
+    }
+}
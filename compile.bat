@@ -1 +1,3 @@
-javac -cp .;commons-io-2.4.jar;wink-json4j-1.3.0.jar BwlFileDownloader.java
\ No newline at end of file
+javac -cp .;commons-io-2.4.jar;wink-json4j-1.3.0.jar BwlFileDownloader.java
+rem the local stub server and the benchmark, see BwlBenchmark
+javac -cp .;commons-io-2.4.jar;wink-json4j-1.3.0.jar BwlStubServer.java BwlBenchmark.java
\ No newline at end of file